@@ -35,6 +35,7 @@ class FullTextDocumentService implements TextDocumentService {
 
     public FullTextDocumentService(String workspaceRoot) {
         Map<String, Object> options = new HashMap<>();
+        options.put("incremental", true);
         positions = new LinkedHashMap<>();
         analyzer = new Analyzer(options);
         analyzer.analyze(workspaceRoot);
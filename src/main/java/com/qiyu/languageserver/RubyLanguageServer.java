@@ -15,11 +15,17 @@ import org.yinwang.rubysonar.AstCache;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 class RubyLanguageServer implements LanguageServer, LanguageClientAware {
   private LanguageClient client = null;
@@ -29,6 +35,17 @@ class RubyLanguageServer implements LanguageServer, LanguageClientAware {
 
   private Analyzer analyzer;
 
+  // edits are analyzed off the message thread, after typing pauses for this long
+  private static final long EDIT_DELAY_MS = 300;
+  private final ScheduledExecutorService analysis = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "lsp-analysis");
+    t.setDaemon(true);
+    return t;
+  });
+  // latest buffer of each edited file not analyzed yet, null to go back to the saved file
+  private final Map<String, String> pendingEdits = new LinkedHashMap<>();
+  private ScheduledFuture<?> pendingFlush = null;
+
   @Override
   public CompletableFuture<InitializeResult> initialize(InitializeParams params) {
     Utils.msg(params.toString());
@@ -37,7 +54,8 @@ class RubyLanguageServer implements LanguageServer, LanguageClientAware {
       Utils.die("got null workspaceRoot");
     }
 
-    positions = new LinkedHashMap<>();
+    // read on the message thread, updated on the analysis thread
+    positions = Collections.synchronizedMap(new LinkedHashMap<>());
     analyzer = Analyzer.newCachedInstance();
     analyzer.analyze(workspaceRoot.substring(7));
     analyzer.finish();
@@ -99,6 +117,7 @@ class RubyLanguageServer implements LanguageServer, LanguageClientAware {
 
   @Override
   public CompletableFuture<Object> shutdown() {
+    analysis.shutdownNow();
     return CompletableFuture.completedFuture(null);
   }
 
@@ -148,6 +167,28 @@ class RubyLanguageServer implements LanguageServer, LanguageClientAware {
       }
       return CompletableFuture.completedFuture(locations);
     }
+
+    // unsaved edits are analyzed on top of the project, so definitions
+    // follow the buffer as it is typed
+
+    @Override
+    public void didChange(DidChangeTextDocumentParams params) {
+      super.didChange(params);
+      String uri = params.getTextDocument().getUri();
+      queueOverlay(Utils.formatFileUri(uri), documents.get(uri).getText(), EDIT_DELAY_MS);
+    }
+
+    @Override
+    public void didClose(DidCloseTextDocumentParams params) {
+      super.didClose(params);
+      queueOverlay(Utils.formatFileUri(params.getTextDocument().getUri()), null, 0);
+    }
+
+    @Override
+    public void didSave(DidSaveTextDocumentParams params) {
+      // the file has what the buffer had
+      queueOverlay(Utils.formatFileUri(params.getTextDocument().getUri()), null, 0);
+    }
   };
 
   @Override
@@ -176,33 +217,71 @@ class RubyLanguageServer implements LanguageServer, LanguageClientAware {
 
       @Override
       public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
-        List<String> files = new ArrayList<>();
+        List<String> changed = new ArrayList<>();
         for (FileEvent f : params.getChanges()) {
-          String filename = Utils.formatFileUri(f.getUri());
-          files.add(filename);
-          
-          analyzer.removeReferences(filename);
-          analyzer.removeAstCache(filename);
-          initPostions(filename);
-          analyzer.loadFile(filename);
+          changed.add(Utils.formatFileUri(f.getUri()));
         }
-        analyzer.applyUncalled();
-        generatePositions(files);
+
+        // re-resolves the changed files and everything depending on them
+        analysis.execute(() -> reanalyze(changed));
       }
     };
   }
 
-  private void initPostions(String filename) {
-    positions.put(filename, new LinkedHashMap<>());
+  /**
+   * Remember the buffer of {@code file} and analyze it after {@code delay}
+   * ms on the analysis thread.  Edits arriving meanwhile push the analysis
+   * back and are analyzed together, only the latest buffer of each file.
+   */
+  private synchronized void queueOverlay(String file, String source, long delay) {
+    pendingEdits.put(file, source);
+    if (pendingFlush != null) {
+      pendingFlush.cancel(false);
+    }
+    pendingFlush = analysis.schedule(this::flushOverlays, delay, TimeUnit.MILLISECONDS);
   }
 
-  private void generatePositions(List<String> files) {
-    files.stream().forEach(file -> generatePositions(file));
+  private void flushOverlays() {
+    Map<String, String> edits;
+    synchronized (this) {
+      edits = new LinkedHashMap<>(pendingEdits);
+      pendingEdits.clear();
+    }
+    Set<String> files = new LinkedHashSet<>();
+    try {
+      for (Map.Entry<String, String> e : edits.entrySet()) {
+        files.addAll(analyzer.setOverlay(e.getKey(), e.getValue()));
+      }
+    } catch (Exception e) {
+      Utils.msg("Failed to analyze edits of " + edits.keySet() + ": " + e);
+    }
+    updatePositions(new ArrayList<>(files));
   }
 
-  private void generatePositions(String filename) {
-    Map<Integer, Map<String, List<Map<String, Object>>>> fileRefs = positions.get(filename);
-    for (Map.Entry<Node, List<Binding>> e : analyzer.getReferences(filename).entrySet()) {
+  // the executor drops what a task throws, so it is logged here
+  private void reanalyze(List<String> changed) {
+    try {
+      updatePositions(analyzer.reanalyze(changed));
+    } catch (Exception e) {
+      Utils.msg("Failed to reanalyze " + changed + ": " + e);
+    }
+  }
+
+  private void updatePositions(List<String> files) {
+    // each file's positions are built aside and swapped in whole
+    files.forEach(file -> {
+      Map<Integer, Map<String, List<Map<String, Object>>>> fileRefs = new LinkedHashMap<>();
+      generatePositions(file, fileRefs);
+      positions.put(file, fileRefs);
+    });
+  }
+
+  private void generatePositions(String filename, Map<Integer, Map<String, List<Map<String, Object>>>> fileRefs) {
+    Map<Node, List<Binding>> refs = analyzer.getReferences(filename);
+    if (refs == null) {
+      return;
+    }
+    for (Map.Entry<Node, List<Binding>> e : refs.entrySet()) {
 
       Node node = e.getKey();
 
@@ -1,9 +1,6 @@
 package org.yinwang.rubysonar;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.filefilter.NameFileFilter;
-import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.yinwang.rubysonar.ast.Call;
@@ -19,6 +16,12 @@ import java.io.*;
 import java.net.URL;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import com.google.common.base.CaseFormat;
@@ -34,28 +37,105 @@ public class Analyzer implements Serializable {
     public static Analyzer self;
 
     public String sid = Utils.newSessionId();
-    public String cwd = null;
-    public int nCalled = 0;
+    public AtomicInteger nCalled = new AtomicInteger();
+    // counted on every attribute and constructor lookup, so kept off the
+    // synchronized stats
+    public LongAdder inlineCacheHits = new LongAdder();
+    public LongAdder inlineCacheMisses = new LongAdder();
+    public LongAdder inlineCacheMegamorphic = new LongAdder();
 
     public State globaltable = new State(null, State.StateType.GLOBAL);
 
-    private Set<String> loadedConst = new HashSet<>();
-    public Set<String> loadedFiles = new HashSet<>();
-    public List<Binding> allBindings = new ArrayList<>();
+    // the stores below are shared by all threads in parallel mode
+    private Set<String> loadedConst = ConcurrentHashMap.newKeySet();
+    public Set<String> loadedFiles = ConcurrentHashMap.newKeySet();
+    // type each loaded file resolved to, returned when it is required again
+    private Map<String, Type> moduleTypes = new ConcurrentHashMap<>();
+    public List<Binding> allBindings = Collections.synchronizedList(new ArrayList<>());
     public Map<String, Map<Node, List<Binding>>> references = new LinkedHashMap<>();
-    public Set<Name> resolved = new HashSet<>();
-    public Set<Name> unresolved = new HashSet<>();
+    public Set<Name> resolved = ConcurrentHashMap.newKeySet();
+    public Set<Name> unresolved = ConcurrentHashMap.newKeySet();
 
     public transient Map<String, List<Diagnostic>> semanticErrors = new HashMap<>();
-    public Set<String> failedToParse = new HashSet<>();
+    public Set<String> failedToParse = ConcurrentHashMap.newKeySet();
 
 
     public List<String> path = new ArrayList<>();
     private Set<FunType> uncalled = new LinkedHashSet<>();
-    private Set<Object> callStack = new HashSet<>();
-    private Set<Object> importStack = new HashSet<>();
+
+    /**
+     * State of one walk over the ASTs, kept per thread so that independent
+     * files can be resolved concurrently.
+     */
+    private static class WalkState {
+        String cwd = null;
+        String file = null;
+        boolean staticContext = false;
+        Set<Object> callStack = new HashSet<>();
+        Set<Object> importStack = new HashSet<>();
+    }
+
+
+    private transient ThreadLocal<WalkState> walkState = ThreadLocal.withInitial(WalkState::new);
+
+    /**
+     * A file being resolved by one thread.  Other threads loading it
+     * meanwhile wait for its type instead of resolving it a second time.
+     */
+    private static class Claim {
+        final Thread owner = Thread.currentThread();
+        final CompletableFuture<Type> type = new CompletableFuture<>();
+    }
+
+
+    // files being resolved now, and the file each waiting thread waits for
+    private transient Map<String, Claim> claims = new ConcurrentHashMap<>();
+    private transient Map<Thread, String> waitingFor = new HashMap<>();
+
+    // feeds analyze() while the workspace is being parsed
+    @Nullable
+    private transient volatile ParsePipeline parsePipeline;
+
+    /**
+     * A write made while resolving one file into a table created by another
+     * (the global table, a reopened class...), with the value it replaced.
+     */
+    private static class StateWrite {
+        final State state;
+        final String id;
+        // null for a removal
+        @Nullable
+        final List<Binding> written;
+        @Nullable
+        final List<Binding> previous;
+
+
+        StateWrite(State state, String id, @Nullable List<Binding> written, @Nullable List<Binding> previous) {
+            this.state = state;
+            this.id = id;
+            this.written = written;
+            this.previous = previous;
+        }
+    }
+
+
+    // provenance for reanalyze: file -> its writes into foreign tables, file -> files that depend on it
+    private transient Map<String, List<StateWrite>> foreignWrites = new HashMap<>();
+    private transient Map<String, Set<String>> dependents = new HashMap<>();
+    // foreign writes are only kept with --incremental, nothing else undoes them
+    private transient boolean recordWrites = false;
+    // calls each function remembers (--summary-cache-size), read once here
+    // rather than in the middle of inference
+    private transient int summaryCacheSize;
+    // unsaved editor content, analyzed in place of the files on disk
+    private transient Map<String, String> overlays = new ConcurrentHashMap<>();
 
     private transient AstCache astCache;
+    private transient LoadPathIndex loadPathIndex;
+    @Nullable
+    private transient CompletableFuture<Analyzer> pendingSnapshot = null;
+    @Nullable
+    private transient String snapshotPath = null;
     public Stats stats = new Stats();
     private transient Progress loadingProgress = null;
 
@@ -66,8 +146,6 @@ public class Analyzer implements Serializable {
     public boolean multilineFunType = false;
     public String suffix;
 
-    public boolean staticContext = false;
-
     public Map<String, Object> options;
 
 
@@ -83,6 +161,8 @@ public class Analyzer implements Serializable {
         } else {
             this.options = new HashMap<>();
         }
+        recordWrites = hasOption("incremental");
+        summaryCacheSize = parseSummaryCacheSize();
         stats.putInt("startTime", System.currentTimeMillis());
         this.suffix = ".rb";
         addEnvPath();
@@ -91,27 +171,83 @@ public class Analyzer implements Serializable {
         getAstCache();
     }
 
+    /**
+     * An analyzer that already knows the Rails gems.  They are analyzed once
+     * and saved as a {@link Snapshot}; later instances read the snapshot in
+     * the background while the workspace is parsed (see {@link #analyze}).
+     */
     public static Analyzer newCachedInstance() {
         Map<String, Object> options = new HashMap<>();
         options.put("quiet", true);
+        options.put("incremental", true);
         Analyzer analyzer = new Analyzer(options);
 
-        /*
-        Analyzer gemsCache = Analyzer.deserialize();
-        if ( gemsCache == null) {
-            analyzer.analyzeRails();
-            Analyzer.serialize(analyzer);
-        } else {
-            analyzer = gemsCache;
-            analyzer.semanticErrors = new HashMap<>();
-            Analyzer.self = analyzer;
+        String snapshot = Snapshot.getPath();
+        if (snapshot != null) {
+            if (new File(snapshot).canRead()) {
+                analyzer.snapshotPath = snapshot;
+                analyzer.pendingSnapshot = Snapshot.readAsync(snapshot);
+            } else {
+                analyzer.buildSnapshot(snapshot);
+            }
         }
-         */
-        
+
         return analyzer;
     }
 
 
+    /**
+     * Analyze the Rails gems and save them as the snapshot at {@code path}.
+     */
+    private void buildSnapshot(@NotNull String path) {
+        // the gems are analyzed on their own, not as part of a workspace
+        // and never analyzed again, so their writes aren't kept for undoing
+        String dir = projectDir;
+        ParsePipeline pipeline = parsePipeline;
+        boolean record = recordWrites;
+        parsePipeline = null;
+        recordWrites = false;
+        try {
+            analyzeRails();
+            applyUncalled();
+            Snapshot.write(this, path);
+        } finally {
+            projectDir = dir;
+            parsePipeline = pipeline;
+            recordWrites = record;
+        }
+    }
+
+
+    /**
+     * Take over the gems analysis of a snapshot being read, waiting for it
+     * if necessary.
+     */
+    private void adoptSnapshot() {
+        if (pendingSnapshot == null) {
+            return;
+        }
+        Analyzer snap = pendingSnapshot.join();
+        pendingSnapshot = null;
+        if (snap == null) {
+            // unreadable and removed by Snapshot.read, don't go without the gems
+            buildSnapshot(snapshotPath);
+            return;
+        }
+
+        globaltable = snap.globaltable;
+        loadedFiles.addAll(snap.loadedFiles);
+        moduleTypes.putAll(snap.moduleTypes);
+        loadedConst.addAll(snap.loadedConst);
+        allBindings.addAll(snap.allBindings);
+        references.putAll(snap.references);
+        resolved.addAll(snap.resolved);
+        unresolved.addAll(snap.unresolved);
+        failedToParse.addAll(snap.failedToParse);
+        Utils.msg("Loaded gems snapshot: " + snap.loadedFiles.size() + " files");
+    }
+
+
     public boolean hasOption(String option) {
         Object op = options.get(option);
         if (op != null && op.equals(true)) {
@@ -122,6 +258,43 @@ public class Analyzer implements Serializable {
     }
 
 
+    private int parseSummaryCacheSize() {
+        String n = getOption("summary-cache-size", "64");
+        try {
+            return Integer.parseInt(n);
+        } catch (NumberFormatException e) {
+            Utils.die("--summary-cache-size needs a number: " + n);
+            return 0;
+        }
+    }
+
+
+    /**
+     * How many call results each function keeps ({@code --summary-cache-size}).
+     */
+    public int getSummaryCacheSize() {
+        return summaryCacheSize;
+    }
+
+
+    /**
+     * Resolve independent files on several threads (see {@link #analyzeParallel}).
+     */
+    public boolean isParallel() {
+        return hasOption("parallel");
+    }
+
+
+    public String getOption(String option, String defaultValue) {
+        Object op = options.get(option);
+        if (op instanceof String) {
+            return (String) op;
+        } else {
+            return defaultValue;
+        }
+    }
+
+
     private void copyModels() {
         URL resource = Thread.currentThread().getContextClassLoader().getResource(MODEL_LOCATION);
         String dest = Utils.locateTmp("models");
@@ -144,30 +317,169 @@ public class Analyzer implements Serializable {
         String upath = Utils.unifyPath(path);
         File f = new File(upath);
         projectDir = f.isDirectory() ? f.getPath() : f.getParent();
-        startParallelParse();
-        loadFileRecursive(upath);
+        // the one listing shared by the parser, the progress bar and the analysis
+        List<String> files = new FileEnumerator(upath).list();
+        parsePipeline = new ParsePipeline(files, getParseBuffer());
+        try {
+            adoptSnapshot();
+            if (loadingProgress == null) {
+                loadingProgress = new Progress(files.size(), 50);
+            }
+            if (isParallel() && f.isDirectory()) {
+                analyzeParallel(files);
+            } else {
+                for (String file; (file = parsePipeline.next()) != null; ) {
+                    loadFile(file);
+                }
+            }
+        } finally {
+            parsePipeline.close();
+            parsePipeline = null;
+        }
     }
 
-    private List<File> allRubyFiles() {
-        // return new File(projectDir).listFiles((d, name) -> name.endsWith(".rb"));
+
+    /**
+     * How many files may be parsed ahead of the analysis ({@code --parse-buffer}).
+     */
+    private int getParseBuffer() {
+        String n = getOption("parse-buffer", null);
+        if (n == null) {
+            return 2 * Parser.getWorkerCount();
+        }
         try {
-            Path startDir = Paths.get(projectDir);
-            return Files.walk(startDir, FileVisitOption.FOLLOW_LINKS)
-                      .filter((p) -> p.toString().endsWith(".rb"))
-                      .map(Path::toFile)
-                      .collect(Collectors.toList());
-        } catch (IOException e) {
-            Utils.testmsg(e.getMessage());
-            System.exit(2);
+            return Integer.parseInt(n);
+        } catch (NumberFormatException e) {
+            Utils.die("--parse-buffer needs a number: " + n);
+            return 0;
         }
-        return Collections.emptyList();
     }
 
-    private void startParallelParse() {
-        Parser.prepareParse(allRubyFiles());
+
+    /**
+     * How many threads resolve files in parallel mode ({@code --threads}).
+     */
+    private int getThreads() {
+        String n = getOption("threads", null);
+        if (n == null) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        try {
+            return Integer.parseInt(n);
+        } catch (NumberFormatException e) {
+            Utils.die("--threads needs a number: " + n);
+            return 0;
+        }
     }
 
 
+    /**
+     * Builds the require graph of the project and resolves its strongly
+     * connected components on a fork-join pool.  A component is started once
+     * every component it requires is finished, so independent parts of the
+     * tree are resolved concurrently.  Files inside one component are loaded
+     * in order by a single thread.
+     */
+    private void analyzeParallel(List<String> files) {
+        RequireGraph graph = new RequireGraph();
+        for (String file : files) {
+            graph.addFile(file);
+        }
+        // edges as the files come out of the parser
+        for (String file; (file = parsePipeline.next()) != null; ) {
+            Node ast = getAstForFile(file);
+            if (ast == null) {
+                continue;
+            }
+            List<String> loadPath = getLoadPath(new File(file).getParent());
+            for (String name : RequireGraph.findRequires(ast)) {
+                String target = locateRequire(name, loadPath);
+                if (target != null) {
+                    graph.addEdge(file, Utils.unifyPath(target));
+                }
+            }
+        }
+
+        List<List<String>> components = graph.components();
+        Map<String, Integer> componentOf = new HashMap<>();
+        for (int i = 0; i < components.size(); i++) {
+            for (String file : components.get(i)) {
+                componentOf.put(file, i);
+            }
+        }
+
+        // count the distinct components each one waits on
+        List<Set<Integer>> dependents = new ArrayList<>();
+        AtomicInteger[] waiting = new AtomicInteger[components.size()];
+        for (int i = 0; i < components.size(); i++) {
+            dependents.add(new HashSet<>());
+        }
+        for (int i = 0; i < components.size(); i++) {
+            Set<Integer> deps = new HashSet<>();
+            for (String file : components.get(i)) {
+                for (String dep : graph.getRequires(file)) {
+                    Integer c = componentOf.get(dep);
+                    if (c != null && c != i) {
+                        deps.add(c);
+                    }
+                }
+            }
+            waiting[i] = new AtomicInteger(deps.size());
+            for (int c : deps) {
+                dependents.get(c).add(i);
+            }
+        }
+
+        loadingProgress = new Progress(files.size(), 50);
+
+        int threads = getThreads();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        CountDownLatch done = new CountDownLatch(components.size());
+
+        class Task implements Runnable {
+            final int index;
+
+
+            Task(int index) {
+                this.index = index;
+            }
+
+
+            public void run() {
+                try {
+                    for (String file : components.get(index)) {
+                        loadFile(file);
+                    }
+                } catch (Exception e) {
+                    Utils.msg("Failed to resolve " + components.get(index) + ": " + e);
+                } finally {
+                    for (int c : dependents.get(index)) {
+                        if (waiting[c].decrementAndGet() == 0) {
+                            pool.execute(new Task(c));
+                        }
+                    }
+                    done.countDown();
+                }
+            }
+        }
+
+        Utils.msg("Resolving " + files.size() + " files in " + components.size() +
+                " components on " + threads + " threads");
+        for (int i = 0; i < components.size(); i++) {
+            if (waiting[i].get() == 0) {
+                pool.execute(new Task(i));
+            }
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     /**
      * main entry to the analyzer (for JSONDump only)
      */
@@ -179,20 +491,39 @@ public class Analyzer implements Serializable {
 
     public void analyzeRails() {
         projectDir = Utils.gemsPath;
+        List<String> files = new ArrayList<>();
         for (String p : Utils.getRailsPath()) {
             if (p == null) continue;
-            loadFileRecursive(Utils.unifyPath(p)); 
+            FileEnumerator e = new FileEnumerator(Utils.unifyPath(p));
+            // the gems' own test suites
+            e.addRule("test/");
+            files.addAll(e.list());
         }
+        loadFiles(files);
     }
 
 
     public void setCWD(String cd) {
         if (cd != null) {
-            cwd = Utils.unifyPath(cd);
+            walkState.get().cwd = Utils.unifyPath(cd);
         }
     }
 
 
+    public String getCWD() {
+        return walkState.get().cwd;
+    }
+
+
+    /**
+     * The file being resolved on this thread, or {@code null} outside a load.
+     */
+    @Nullable
+    public String getCurrentFile() {
+        return walkState.get().file;
+    }
+
+
     public void addPaths(@NotNull List<String> p) {
         for (String s : p) {
             addPath(s);
@@ -224,6 +555,12 @@ public class Analyzer implements Serializable {
 
     @NotNull
     public List<String> getLoadPath() {
+        return getLoadPath(getCWD());
+    }
+
+
+    @NotNull
+    private List<String> getLoadPath(String cwd) {
         List<String> loadPath = new ArrayList<>(path);
         //loadPath.add("/Users/yinwang/.rvm/src/ruby-2.0.0-p247/lib");
         //if (!Utils.gemsPath.isEmpty()) loadPath.add(Utils.gemsPath);
@@ -240,32 +577,32 @@ public class Analyzer implements Serializable {
 
 
     public boolean inStack(Object f) {
-        return callStack.contains(f);
+        return walkState.get().callStack.contains(f);
     }
 
 
     public void pushStack(Object f) {
-        callStack.add(f);
+        walkState.get().callStack.add(f);
     }
 
 
     public void popStack(Object f) {
-        callStack.remove(f);
+        walkState.get().callStack.remove(f);
     }
 
 
     public boolean inImportStack(Object f) {
-        return importStack.contains(f);
+        return walkState.get().importStack.contains(f);
     }
 
 
     public void pushImportStack(Object f) {
-        importStack.add(f);
+        walkState.get().importStack.add(f);
     }
 
 
     public void popImportStack(Object f) {
-        importStack.remove(f);
+        walkState.get().importStack.remove(f);
     }
 
 
@@ -275,7 +612,7 @@ public class Analyzer implements Serializable {
     }
 
 
-    public List<Diagnostic> getDiagnosticsForFile(String file) {
+    public synchronized List<Diagnostic> getDiagnosticsForFile(String file) {
         List<Diagnostic> errs = semanticErrors.get(file);
         if (errs != null) {
             return errs;
@@ -284,7 +621,7 @@ public class Analyzer implements Serializable {
     }
 
 
-    public void putRef(@NotNull Node node, @NotNull List<Binding> bs) {
+    public synchronized void putRef(@NotNull Node node, @NotNull List<Binding> bs) {
         if (!(node instanceof Url)) {
             if (!references.containsKey(node.getFileName())) {
                 references.put(node.getFileName(), new LinkedHashMap<>());
@@ -300,6 +637,7 @@ public class Analyzer implements Serializable {
                     bindings.add(b);
                 }
                 b.addRef(node);
+                addDependency(node.getFileName(), b.file);
             }
         }
     }
@@ -338,7 +676,7 @@ public class Analyzer implements Serializable {
     }
 
 
-    void addFileErr(String file, int begin, int end, String msg) {
+    synchronized void addFileErr(String file, int begin, int end, String msg) {
         Diagnostic d = new Diagnostic(file, Diagnostic.Category.ERROR, begin, end, msg);
         getFileErrs(file, semanticErrors).add(d);
     }
@@ -354,33 +692,94 @@ public class Analyzer implements Serializable {
     }
 
 
+    /**
+     * Resolve a file, once.  Its bindings stay in place after the first load,
+     * so later loads and requires just return the type it resolved to, until
+     * {@link #invalidateFile} is called.  A file two threads load at once is
+     * resolved by the first, the other waits for its type.
+     */
     @Nullable
     public Type loadFile(String path) {
-        //if (loadedFiles.contains(path)) return null;
         path = Utils.unifyPath(path);
         File f = new File(path);
 
-        if (!f.canRead()) {
+        if (!f.canRead() && !overlays.containsKey(path)) {
             return null;
         }
 
+        if (loadedFiles.contains(path)) {
+            return moduleTypes.get(path);
+        }
+
         // detect circular import
         if (Analyzer.self.inImportStack(path)) {
             return null;
         }
 
-        // set new CWD and save the old one on stack
-        String oldcwd = cwd;
-        setCWD(f.getParent());
+        Claim claim = new Claim();
+        Claim other = claims.putIfAbsent(path, claim);
+        if (other != null) {
+            return awaitClaim(path, other);
+        }
+
+        Type type = null;
+        try {
+            // finished by another thread between the check and the claim
+            if (loadedFiles.contains(path)) {
+                type = moduleTypes.get(path);
+                return type;
+            }
 
-        Analyzer.self.pushImportStack(path);
-        Type type = parseAndResolve(path);
+            // set new CWD and save the old one on stack
+            String oldcwd = getCWD();
+            setCWD(f.getParent());
+
+            String oldFile = getCurrentFile();
+            walkState.get().file = path;
+
+            Analyzer.self.pushImportStack(path);
+            try {
+                type = parseAndResolve(path);
+            } finally {
+                // restore old CWD
+                setCWD(oldcwd);
+                walkState.get().file = oldFile;
+                Analyzer.self.popImportStack(path);
+            }
+            return type;
+        } finally {
+            claims.remove(path, claim);
+            claim.type.complete(type);
+        }
+    }
 
-        // restore old CWD
-        setCWD(oldcwd);
-        Analyzer.self.popImportStack(path);
 
-        return type;
+    /**
+     * The type of a file another thread is resolving, once it is done.
+     * Returns {@code null} at once if that thread waits, maybe through
+     * others, for a file this one is resolving: a require cycle across
+     * threads, which the import stack can't see.
+     */
+    @Nullable
+    private Type awaitClaim(String path, @NotNull Claim claim) {
+        Thread current = Thread.currentThread();
+        synchronized (waitingFor) {
+            for (Claim c = claim; c != null; ) {
+                if (c.owner == current) {
+                    return null;
+                }
+                String next = waitingFor.get(c.owner);
+                c = next == null ? null : claims.get(next);
+            }
+            waitingFor.put(current, path);
+        }
+        try {
+            return claim.type.join();
+        } finally {
+            synchronized (waitingFor) {
+                waitingFor.remove(current);
+            }
+        }
     }
 
 
@@ -394,24 +793,18 @@ public class Analyzer implements Serializable {
                 return null;
             } else {
                 Type type = Node.transformExpr(ast, globaltable);
-                if (!loadedFiles.contains(file)) {
-                    loadedFiles.add(file);
+                moduleTypes.put(file, type);
+                if (loadedFiles.add(file)) {
                     loadedConst.add(FilenameUtils.getBaseName(file));
-                    loadingProgress.tick();
+                    if (loadingProgress != null) {
+                        loadingProgress.tick();
+                    }
                 }
                 return type;
             }
-        } catch (OutOfMemoryError | StackOverflowError e) {
-            if (astCache != null) {
-                astCache.clear();
-            }
-            System.gc();
-            if(e instanceof OutOfMemoryError) {
-                Utils.msg("Skiping for memory size limit: " + file);
-            }
-            if(e instanceof StackOverflowError) {
-                Utils.msg("Skiping for stack size limit: " + file);
-            }
+        } catch (StackOverflowError e) {
+            // the AST cache is bounded on its own, the other trees stay
+            Utils.msg("Skiping for stack size limit: " + file);
             return null;
         }
     }
@@ -441,32 +834,58 @@ public class Analyzer implements Serializable {
 
     @Nullable
     public Node getAstForFile(String file) {
+        String source = overlays.get(file);
+        if (source != null) {
+            Node ast = getAstCache().getAST(file, source);
+            if (ast != null) {
+                return ast;
+            }
+            // mid-edit and doesn't parse, go with what was saved
+        }
+
+        ParsePipeline pipeline = parsePipeline;
+        if (pipeline != null) {
+            // don't wait for the background parsers to get to it
+            pipeline.prioritize(file);
+        }
         return getAstCache().getAST(file);
     }
 
 
     public Type requireFile(String headName) {
-        List<String> loadPath = getLoadPath();
+        String target = locateRequire(headName, getLoadPath());
+        if (target == null) {
+            return null;
+        }
+        target = Utils.unifyPath(target);
+        addDependency(getCurrentFile(), target);
+        // in analyzeParallel the literal requires are resolved before this
+        // file and come from moduleTypes, the ones it couldn't see
+        // (autoloads, computed names) are loaded here as they would be in
+        // sequential mode
+        return loadFile(target);
+    }
+
 
+    @Nullable
+    private String locateRequire(String headName, List<String> loadPath) {
         for (String p : loadPath) {
-            File dir = new File(p);
-            if(!dir.exists()) continue;
-            LinkedList<File> targetFiles = getTargetFiles(dir, headName);
-            if (targetFiles.size() > 0) 
-                return loadFile(targetFiles.getFirst().getPath());
-            //Type t =  requireFileRecursive(p, headName);
-            //if (t != null) return t;
-        //    String trial = Utils.makePathString(p, headName + suffix);
-        //    if (new File(trial).exists()) {
-        //        return loadFile(trial);
-        //    }
+            String target = getLoadPathIndex().find(p, headName);
+            if (target != null) {
+                return target;
+            }
         }
 
         return null;
     }
 
-    public LinkedList<File> getTargetFiles(File dir, String filename) {
-        return (LinkedList<File>)FileUtils.listFiles(dir, new NameFileFilter(filename + ".rb"), TrueFileFilter.INSTANCE);
+
+    @NotNull
+    private synchronized LoadPathIndex getLoadPathIndex() {
+        if (loadPathIndex == null) {
+            loadPathIndex = new LoadPathIndex();
+        }
+        return loadPathIndex;
     }
 
     public Type requireFileRecursive(String path, String baseName) {
@@ -489,53 +908,23 @@ public class Analyzer implements Serializable {
 
 
     public void loadFileRecursive(String fullname) {
+        loadFiles(new FileEnumerator(fullname).list());
+    }
 
-        // 过滤测试目录
-        if (fullname.contains("test") && fullname.contains("rails")) {
-            return;
-        }
 
-        int count = countFileRecursive(fullname);
+    public void loadFiles(List<String> files) {
         if (loadingProgress == null) {
-            loadingProgress = new Progress(count, 50);
+            loadingProgress = new Progress(files.size(), 50);
         }
-
-        File fileOrDir = new File(fullname);
-
-        if (fileOrDir.isDirectory()) {
-            for (File file : fileOrDir.listFiles()) {
-                loadFileRecursive(file.getPath());
-            }
-        } else {
-            if (fileOrDir.getPath().endsWith(suffix)) {
-                loadFile(fileOrDir.getPath());
-            }
-        }
-    }
-
-
-    /**
-     * count number of files that need processing
-     */
-    public int countFileRecursive(String fullname) {
-        File fileOrDir = new File(fullname);
-        int sum = 0;
-
-        if (fileOrDir.isDirectory()) {
-            for (File file : fileOrDir.listFiles()) {
-                sum += countFileRecursive(file.getPath());
-            }
-        } else {
-            if (fileOrDir.getPath().endsWith(suffix)) {
-                sum += 1;
-            }
+        for (String file : files) {
+            loadFile(file);
         }
-        return sum;
     }
 
 
     public void finish() {
-        Utils.msg("\nFinished loading files. " + nCalled + " functions were called.");
+        Utils.msg("\nFinished loading files. " + nCalled.get() + " functions were called.");
+        getAstCache().saveIndex();
         Utils.msg("Analyzing uncalled functions");
         applyUncalled();
 
@@ -556,17 +945,21 @@ public class Analyzer implements Serializable {
 
     public void close() {
         astCache.close();
+        Parser.closeBackend();
+        if (loadPathIndex != null) {
+            loadPathIndex.close();
+        }
     }
 
 
-    public void addUncalled(@NotNull FunType cl) {
+    public synchronized void addUncalled(@NotNull FunType cl) {
         if (!cl.func.called) {
             uncalled.add(cl);
         }
     }
 
 
-    public void removeUncalled(FunType f) {
+    public synchronized void removeUncalled(FunType f) {
         uncalled.remove(f);
     }
 
@@ -595,6 +988,20 @@ public class Analyzer implements Serializable {
         sb.append("\n- modules loaded: " + loadedFiles.size());
         sb.append("\n- semantic problems: " + semanticErrors.size());
         sb.append("\n- failed to parse: " + failedToParse.size());
+        sb.append("\n- ASTs evicted from memory: " + getAstCache().getEvictionCount());
+        sb.append("\n- files parsed ahead of their turn: " + stats.getInt("parse.priority"));
+        sb.append("\n- parser: " + getOption("parser", "ruby") +
+                ", time spent parsing: " + Utils.formatTime(stats.getInt("parse.nanos") / 1000000));
+        sb.append("\n- parse batches: " + stats.getInt("parse.batches") +
+                " (" + stats.getInt("parse.batched") + " files)");
+        sb.append("\n- ruby workers started: " + stats.getInt("worker.started") +
+                ", replaced: " + stats.getInt("worker.replaced") +
+                ", recycled: " + stats.getInt("worker.recycled"));
+        sb.append("\n- function summary hits: " + stats.getInt("summary.hit") +
+                ", misses: " + stats.getInt("summary.miss"));
+        sb.append("\n- inline cache hits: " + inlineCacheHits.sum() +
+                ", misses: " + inlineCacheMisses.sum() +
+                ", megamorphic lookups: " + inlineCacheMegamorphic.sum());
 
         // calculate number of defs, refs, xrefs
         int nDef = 0, nXRef = 0;
@@ -656,33 +1063,165 @@ public class Analyzer implements Serializable {
     }
 
 
+    public boolean isStaticContext() {
+        return walkState.get().staticContext;
+    }
+
+
     public void setStaticContext(boolean staticContext) {
-        this.staticContext = staticContext;
+        walkState.get().staticContext = staticContext;
     }
 
 
 
-    public static void serialize(Analyzer analyzer) {
-        try (FileOutputStream fos = new FileOutputStream("gems_cache.ser");
-             ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-            oos.writeObject(analyzer);
-        } catch (Exception e) {
-            Utils.msg(e.getMessage());
-            Utils.die("serialize error");
+    /**
+     * Record that {@code file} used something defined in {@code dependency}.
+     */
+    public synchronized void addDependency(@Nullable String file, @Nullable String dependency) {
+        if (file != null && dependency != null && !file.equals(dependency)) {
+            dependents.computeIfAbsent(dependency, k -> new HashSet<>()).add(file);
         }
     }
 
-    public static Analyzer deserialize() {
-        try (FileInputStream fis = new FileInputStream("gems_cache.ser");
-             ObjectInputStream ois = new ObjectInputStream(fis)) {
-            return (Analyzer)ois.readObject();
-        } catch (Exception e) {
-            Utils.msg(e.getMessage());
-            //Utils.die("deserialize error");
-            return null;
+
+    public boolean isRecordingWrites() {
+        return recordWrites;
+    }
+
+
+    /**
+     * Called by State for every table write, remembers the ones that cross
+     * file boundaries so that they can be undone by {@link #reanalyze}.
+     * Only with {@code --incremental}, which the language server sets.
+     */
+    public void recordWrite(@NotNull State state, String id, @Nullable List<Binding> written,
+                            @Nullable List<Binding> previous)
+    {
+        if (!recordWrites) {
+            return;
+        }
+        String file = getCurrentFile();
+        if (file != null && !file.equals(state.origin)) {
+            synchronized (this) {
+                foreignWrites.computeIfAbsent(file, k -> new ArrayList<>())
+                        .add(new StateWrite(state, id, written, previous));
+            }
         }
     }
 
+
+    /**
+     * Re-resolve {@code changed} and every file that transitively depends on
+     * them, leaving the rest of the analysis in place.  Needs
+     * {@code --incremental} to undo what they wrote into other files.  Everything the
+     * affected files contributed -- bindings, references, problems, writes
+     * into tables of other files -- is dropped first.
+     *
+     * @return the re-resolved files, changed ones first
+     */
+    @NotNull
+    public synchronized List<String> reanalyze(@NotNull Collection<String> changed) {
+        LinkedHashSet<String> affected = new LinkedHashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        for (String f : changed) {
+            String file = Utils.unifyPath(f);
+            if (affected.add(file)) {
+                queue.add(file);
+            }
+        }
+        while (!queue.isEmpty()) {
+            for (String d : dependents.getOrDefault(queue.poll(), Collections.emptySet())) {
+                if (affected.add(d)) {
+                    queue.add(d);
+                }
+            }
+        }
+
+        invalidate(affected);
+
+        List<String> files = new ArrayList<>(affected);
+        for (String file : files) {
+            // a no-op if already pulled in by a require of an earlier one
+            loadFile(file);
+        }
+        applyUncalled();
+        return files;
+    }
+
+
+    /**
+     * Analyze {@code source} in place of what is saved in {@code file}, or
+     * go back to the saved content if {@code source} is {@code null}.  Like
+     * {@link #reanalyze}, only the file and its dependents are resolved
+     * again, the rest of the project stays as it is.
+     *
+     * @return the re-resolved files
+     */
+    @NotNull
+    public synchronized List<String> setOverlay(@NotNull String file, @Nullable String source) {
+        file = Utils.unifyPath(file);
+        if (source == null) {
+            if (overlays.remove(file) == null) {
+                return Collections.emptyList();
+            }
+        } else if (source.equals(overlays.put(file, source))) {
+            return Collections.emptyList();
+        }
+        return reanalyze(Collections.singletonList(file));
+    }
+
+
+    private void invalidate(@NotNull Set<String> files) {
+        // undo writes into other files' tables, latest first
+        for (String file : files) {
+            List<StateWrite> writes = foreignWrites.remove(file);
+            if (writes == null) {
+                continue;
+            }
+            for (int i = writes.size() - 1; i >= 0; i--) {
+                StateWrite w = writes.get(i);
+                if (w.state.table.get(w.id) == w.written) {
+                    w.state.restore(w.id, w.previous);
+                }
+            }
+        }
+
+        for (String file : files) {
+            Map<Node, List<Binding>> refs = references.remove(file);
+            if (refs != null) {
+                for (Map.Entry<Node, List<Binding>> e : refs.entrySet()) {
+                    for (Binding b : e.getValue()) {
+                        b.refs.remove(e.getKey());
+                    }
+                }
+            }
+            semanticErrors.remove(file);
+            invalidateFile(file);
+        }
+
+        allBindings.removeIf(b -> files.contains(b.file));
+        resolved.removeIf(n -> files.contains(n.file));
+        unresolved.removeIf(n -> files.contains(n.file));
+        uncalled.removeIf(f -> files.contains(f.func.file));
+        for (Set<String> ds : dependents.values()) {
+            ds.removeAll(files);
+        }
+    }
+
+
+    /**
+     * Make the next load or require of {@code file} resolve it again instead
+     * of returning the cached result.  Use {@link #reanalyze} to also drop
+     * what the previous resolution contributed.
+     */
+    public void invalidateFile(String file) {
+        loadedFiles.remove(file);
+        moduleTypes.remove(file);
+        // fresh nodes, the old ones carry state such as Function.called
+        removeAstCache(file);
+    }
+
+
     public void removeReferences(String fileName) {
         references.remove(fileName);
     }
@@ -692,6 +1231,18 @@ public class Analyzer implements Serializable {
     }
 
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        walkState = ThreadLocal.withInitial(WalkState::new);
+        semanticErrors = new HashMap<>();
+        foreignWrites = new HashMap<>();
+        dependents = new HashMap<>();
+        overlays = new ConcurrentHashMap<>();
+        claims = new ConcurrentHashMap<>();
+        waitingFor = new HashMap<>();
+    }
+
+
     @NotNull
     @Override
     public String toString() {
@@ -2,12 +2,15 @@ package org.yinwang.rubysonar;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.yinwang.rubysonar.ast.Moduler;
 import org.yinwang.rubysonar.ast.Node;
 
-import java.io.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,6 +18,15 @@ import java.util.logging.Logger;
 /**
  * Provides a factory for ruby source ASTs.  Maintains configurable on-disk and
  * in-memory caches to avoid re-parsing files during analysis.
+ *
+ * The in-memory cache is an LRU bounded by an estimated byte budget
+ * ({@code --ast-cache-mb}, a quarter of the max heap by default).  Trees
+ * pushed out of it are written to the disk cache first, so they are
+ * reloaded rather than re-parsed.
+ *
+ * Trees of editor buffers ({@link #getAST(String, String)}) are cached
+ * under their path like the others, but marked with the SHA-1 of the
+ * content they came from, and on disk under that hash.
  */
 public class AstCache {
 
@@ -22,10 +34,38 @@ public class AstCache {
 
     private static final AstCache INSTANCE = new AstCache();
 
+    // rough heap cost of one node with its strings and lists
+    private static final long BYTES_PER_NODE = 160;
+
+    private static class Entry {
+        @Nullable
+        final Node node;
+        final long weight;
+        boolean onDisk;
+        // hash of the buffer the tree was parsed from, null if from the file
+        @Nullable
+        final String sha;
+
+
+        Entry(@Nullable Node node, long weight, boolean onDisk, @Nullable String sha) {
+            this.node = node;
+            this.weight = weight;
+            this.onDisk = onDisk;
+            this.sha = sha;
+        }
+    }
+
+
+    // access-ordered, guarded by this
     @NotNull
-    private ConcurrentMap<String, Node> cache = new ConcurrentHashMap<>();
+    private LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long maxWeight = -1;
+    private long evictions = 0;
     @NotNull
     private static Parser parser;
+    @Nullable
+    private FileHashIndex hashIndex;
 
     private AstCache() {
         parser = new Parser();
@@ -43,8 +83,9 @@ public class AstCache {
     /**
      * Clears the memory cache.
      */
-    public void clear() {
+    public synchronized void clear() {
         cache.clear();
+        weight = 0;
     }
 
 
@@ -66,10 +107,30 @@ public class AstCache {
 
     public void close() {
         parser.close();
+        saveIndex();
 //        clearDiskCache();
     }
 
-    
+
+    /**
+     * Persists the path -> hash table so the next run can skip hashing
+     * unchanged files.
+     */
+    public void saveIndex() {
+        if (hashIndex != null) {
+            hashIndex.save();
+        }
+    }
+
+
+    @NotNull
+    private synchronized FileHashIndex getHashIndex() {
+        if (hashIndex == null) {
+            hashIndex = new FileHashIndex(Utils.makePathString(Analyzer.self.cacheDir, "index"));
+        }
+        return hashIndex;
+    }
+
 
 
     /**
@@ -81,43 +142,210 @@ public class AstCache {
      */
     @Nullable
     public Node getAST(@NotNull String path) {
+        return getAST(path, Parser::parse);
+    }
+
+
+    /**
+     * Like {@link #getAST(String)}, with {@code parse} called on a miss of
+     * both caches.
+     */
+    @Nullable
+    public Node getAST(@NotNull String path, @NotNull Function<String, Node> parse) {
         // Cache stores null value if the parse failed.
-        if (cache.containsKey(path)) {
-            return cache.get(path);
+        synchronized (this) {
+            Entry e = cache.get(path);
+            if (e != null && e.sha == null) {
+                return e.node;
+            }
         }
 
+        // Hashed at most once here, and only if the file changed since it was last seen.
+        String cachePath = getCachePath(path);
+
         // Might be cached on disk but not in memory.
-        Node node = getSerializedModuler(path);
+        Node node = cachePath == null ? null : getSerializedAst(cachePath);
         if (node != null) {
             LOG.log(Level.FINE, "reusing " + path);
-            cache.put(path, node);
+            store(path, node, true, null);
             return node;
         }
 
         node = null;
         try {
             LOG.log(Level.FINE, "parsing " + path);
-            node = parser.parseFile(path);
+            node = parse.apply(path);
         } finally {
-            cache.put(path, node);
+            storeParsed(path, node, cachePath, null);
+        }
+        return node;
+    }
+
+
+    /**
+     * Returns the syntax tree of {@code source}, the unsaved content of
+     * {@code path}.  The same content is parsed only once: its tree is
+     * cached under the content's hash, which is also where the tree of a
+     * file with that content is found on disk.
+     *
+     * @return the AST, or {@code null} if the source doesn't parse
+     */
+    @Nullable
+    public Node getAST(@NotNull String path, @NotNull String source) {
+        String sha = Utils.getSHA(source.getBytes(Utils.UTF_8));
+        synchronized (this) {
+            Entry e = cache.get(path);
+            if (e != null && sha.equals(e.sha)) {
+                return e.node;
+            }
         }
 
+        String cachePath = getCachePath(sha, new File(path).getName());
+        Node node = getSerializedAst(cachePath);
         if (node != null) {
-            serialize(node);
+            store(path, node, true, sha);
+            return node;
         }
 
+        node = null;
+        try {
+            LOG.log(Level.FINE, "parsing buffer of " + path);
+            node = Parser.parseSource(path, source);
+        } finally {
+            storeParsed(path, node, cachePath, sha);
+        }
         return node;
     }
 
 
     /**
-     * Each source file's AST is saved in an object file named for the MD5
-     * checksum of the source file.  All that is needed is the MD5, but the
+     * Brings the trees of {@code paths} into the memory cache, like
+     * {@link #getAST(String, Function)}, but with the misses of both caches
+     * parsed by a single call to {@code parse}, which returns their trees in
+     * the same order.
+     */
+    public void loadASTs(@NotNull List<String> paths, @NotNull Function<List<String>, List<Node>> parse) {
+        List<String> missing = new ArrayList<>();
+        List<String> cachePaths = new ArrayList<>();
+        for (String path : paths) {
+            synchronized (this) {
+                if (cache.containsKey(path)) {
+                    continue;
+                }
+            }
+            String cachePath = getCachePath(path);
+            Node node = cachePath == null ? null : getSerializedAst(cachePath);
+            if (node != null) {
+                store(path, node, true, null);
+            } else {
+                missing.add(path);
+                cachePaths.add(cachePath);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return;
+        }
+        List<Node> nodes = parse.apply(missing);
+        for (int i = 0; i < missing.size(); i++) {
+            storeParsed(missing.get(i), nodes.get(i), cachePaths.get(i), null);
+        }
+    }
+
+
+    private void storeParsed(@NotNull String path, @Nullable Node node, @Nullable String cachePath, @Nullable String sha) {
+        store(path, node, false, sha);
+        if (node != null && cachePath != null) {
+            serialize(node, cachePath);
+            synchronized (this) {
+                Entry e = cache.get(path);
+                if (e != null && e.node == node) {
+                    e.onDisk = true;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Inserts a tree and evicts least recently used ones until the cache is
+     * back within budget.  Evicted trees not yet on disk are serialized
+     * outside the lock.
+     */
+    private void store(@NotNull String path, @Nullable Node node, boolean onDisk, @Nullable String sha) {
+        long w = node == null ? 0 : AstCodec.countNodes(node) * BYTES_PER_NODE;
+        List<Entry> spill = new ArrayList<>();
+
+        synchronized (this) {
+            Entry old = cache.put(path, new Entry(node, w, onDisk, sha));
+            if (old != null) {
+                weight -= old.weight;
+            }
+            weight += w;
+
+            long budget = getMaxWeight();
+            Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+            while (weight > budget && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                if (eldest.getKey().equals(path)) {
+                    continue;
+                }
+                Entry e = eldest.getValue();
+                it.remove();
+                weight -= e.weight;
+                evictions++;
+                if (e.node != null && !e.onDisk) {
+                    spill.add(e);
+                }
+            }
+        }
+
+        for (Entry e : spill) {
+            String file = e.node.file;
+            String cachePath = e.sha != null ? getCachePath(e.sha, new File(file).getName()) : getCachePath(file);
+            if (cachePath != null) {
+                serialize(e.node, cachePath);
+            }
+        }
+    }
+
+
+    private long getMaxWeight() {
+        if (maxWeight < 0) {
+            String mb = Analyzer.self.getOption("ast-cache-mb", null);
+            if (mb != null) {
+                try {
+                    maxWeight = Long.parseLong(mb) * 1024 * 1024;
+                } catch (NumberFormatException e) {
+                    Utils.die("--ast-cache-mb needs a number: " + mb);
+                }
+            } else {
+                maxWeight = Runtime.getRuntime().maxMemory() / 4;
+            }
+        }
+        return maxWeight;
+    }
+
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+
+    /**
+     * Each source file's AST is saved in a binary file (see {@link AstCodec})
+     * named for the SHA-1 checksum of the source file.  All that is needed is the checksum, but the
      * file's base name is included for ease of debugging.
+     *
+     * @return the cache path, or {@code null} if the source can't be read
      */
-    @NotNull
+    @Nullable
     public String getCachePath(@NotNull String sourcePath) {
-        return getCachePath(Utils.getSHA(sourcePath), sourcePath);
+        String sha = getHashIndex().getHash(sourcePath);
+        if (sha == null) {
+            return null;
+        }
+        return getCachePath(sha, new File(sourcePath).getName());
     }
 
 
@@ -126,36 +354,25 @@ public class AstCache {
         return Utils.makePathString(Analyzer.self.cacheDir, name + md5 + ".ast");
     }
 
-    public void remove(String filename) {
-        cache.remove(filename);
+    public synchronized void remove(String filename) {
+        Entry e = cache.remove(filename);
+        if (e != null) {
+            weight -= e.weight;
+        }
     }
 
     public void put(String filename, Node node) {
-        cache.put(filename, node);
+        store(filename, node, false, null);
     }
 
     /**
      * package-private for testing
      */
-    void serialize(@NotNull Node ast) {
-        String path = getCachePath(Utils.getSHA(ast.file), new File(ast.file).getName());
-        ObjectOutputStream oos = null;
-        FileOutputStream fos = null;
+    void serialize(@NotNull Node ast, @NotNull String cachePath) {
         try {
-            fos = new FileOutputStream(path);
-            oos = new ObjectOutputStream(fos);
-            oos.writeObject(ast);
+            AstCodec.write(ast, cachePath);
         } catch (Exception e) {
-            Utils.msg("Failed to serialize: " + path);
-        } finally {
-            try {
-                if (oos != null) {
-                    oos.close();
-                } else if (fos != null) {
-                    fos.close();
-                }
-            } catch (Exception e) {
-            }
+            Utils.msg("Failed to serialize: " + cachePath);
         }
     }
 
@@ -164,15 +381,11 @@ public class AstCache {
      * package-private for testing
      */
     @Nullable
-    Moduler getSerializedModuler(String sourcePath) {
-        if (!new File(sourcePath).canRead()) {
-            return null;
-        }
-        File cached = new File(getCachePath(sourcePath));
-        if (!cached.canRead()) {
+    Node getSerializedAst(@NotNull String cachePath) {
+        if (!new File(cachePath).canRead()) {
             return null;
         }
-        return deserialize(sourcePath);
+        return deserialize(cachePath);
     }
 
 
@@ -180,26 +393,15 @@ public class AstCache {
      * package-private for testing
     */
     @Nullable
-    Moduler deserialize(@NotNull String sourcePath) {
-        String cachePath = getCachePath(sourcePath);
-        FileInputStream fis = null;
-        ObjectInputStream ois = null;
+    Node deserialize(@NotNull String cachePath) {
         try {
-            fis = new FileInputStream(cachePath);
-            ois = new ObjectInputStream(fis);
-            return (Moduler) ois.readObject();
+            Node ast = AstCodec.read(cachePath);
+            if (ast == null) {
+                LOG.log(Level.FINE, "stale cache format: " + cachePath);
+            }
+            return ast;
         } catch (Exception e) {
             return null;
-        } finally {
-            try {
-                if (ois != null) {
-                    ois.close();
-                } else if (fis != null) {
-                    fis.close();
-                }
-            } catch (Exception e) {
-
-            }
         }
     }
 }
@@ -0,0 +1,739 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.rubysonar.ast.*;
+import org.yinwang.rubysonar.ast.Class;
+import org.yinwang.rubysonar.ast.Void;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+
+/**
+ * Binary on-disk format of the AST cache.
+ *
+ * <pre>
+ *   magic, version                 4 bytes each, big-endian
+ *   string count, strings          varint, then (varint length, UTF-8 bytes)*
+ *   root node
+ * </pre>
+ *
+ * A node is a kind tag (0 for null), the index of its file name in the
+ * string table, zigzag varint positions and then its own fields. Nodes are
+ * rebuilt through their constructors, so parent links come out the same as
+ * after a fresh parse. Files with a different magic or version are rejected.
+ */
+public class AstCodec {
+
+    private static final int MAGIC = 0x52534154;   // "RSAT"
+    private static final int VERSION = 1;
+
+
+    private enum Kind {
+        ARRAY, ASSIGN, ATTRIBUTE, BINOP, BLOCK, CALL, CLASS, CONTROL, DICT, DUMMY, FOR,
+        FUNCTION, HANDLER, IF, INDEX, KEYWORD, MODULER, NAME, RAISE, RBFLOAT, RBINT, REGEXP,
+        RETURN, SLICE, STARRED, STR, STREMBED, SUBSCRIPT, SYMBOL, TRY, UNARYOP, UNDEF, URL,
+        VOID, WHILE, YIELD
+    }
+
+
+    private static final Map<java.lang.Class<?>, Kind> kinds = new HashMap<>();
+
+    static {
+        kinds.put(Array.class, Kind.ARRAY);
+        kinds.put(Assign.class, Kind.ASSIGN);
+        kinds.put(Attribute.class, Kind.ATTRIBUTE);
+        kinds.put(BinOp.class, Kind.BINOP);
+        kinds.put(Block.class, Kind.BLOCK);
+        kinds.put(Call.class, Kind.CALL);
+        kinds.put(Class.class, Kind.CLASS);
+        kinds.put(Control.class, Kind.CONTROL);
+        kinds.put(Dict.class, Kind.DICT);
+        kinds.put(Dummy.class, Kind.DUMMY);
+        kinds.put(For.class, Kind.FOR);
+        kinds.put(Function.class, Kind.FUNCTION);
+        kinds.put(Handler.class, Kind.HANDLER);
+        kinds.put(If.class, Kind.IF);
+        kinds.put(Index.class, Kind.INDEX);
+        kinds.put(Keyword.class, Kind.KEYWORD);
+        kinds.put(Moduler.class, Kind.MODULER);
+        kinds.put(Name.class, Kind.NAME);
+        kinds.put(Raise.class, Kind.RAISE);
+        kinds.put(RbFloat.class, Kind.RBFLOAT);
+        kinds.put(RbInt.class, Kind.RBINT);
+        kinds.put(Regexp.class, Kind.REGEXP);
+        kinds.put(Return.class, Kind.RETURN);
+        kinds.put(Slice.class, Kind.SLICE);
+        kinds.put(Starred.class, Kind.STARRED);
+        kinds.put(Str.class, Kind.STR);
+        kinds.put(StrEmbed.class, Kind.STREMBED);
+        kinds.put(Subscript.class, Kind.SUBSCRIPT);
+        kinds.put(Symbol.class, Kind.SYMBOL);
+        kinds.put(Try.class, Kind.TRY);
+        kinds.put(UnaryOp.class, Kind.UNARYOP);
+        kinds.put(Undef.class, Kind.UNDEF);
+        kinds.put(Url.class, Kind.URL);
+        kinds.put(Void.class, Kind.VOID);
+        kinds.put(While.class, Kind.WHILE);
+        kinds.put(Yield.class, Kind.YIELD);
+    }
+
+
+    /**
+     * Write {@code ast} to {@code path}, replacing the file atomically.
+     *
+     * @return the number of nodes written
+     */
+    public static int write(@NotNull Node ast, @NotNull String path) throws IOException {
+        Writer w = new Writer();
+        w.writeNode(ast);
+
+        Path target = Paths.get(path);
+        Path tmp = Paths.get(path + "." + Utils.newSessionId());
+        try (OutputStream out = new FileOutputStream(tmp.toFile())) {
+            Buffer header = new Buffer();
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeVarint(w.strings.size());
+            for (String s : w.strings.keySet()) {
+                byte[] bytes = s.getBytes(Utils.UTF_8);
+                header.writeVarint(bytes.length);
+                header.write(bytes, 0, bytes.length);
+            }
+            header.writeTo(out);
+            w.body.writeTo(out);
+        }
+
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return w.count;
+    }
+
+
+    /**
+     * Read an AST back through a memory mapping of {@code path}.
+     *
+     * @return the AST, or {@code null} if the file is from another format version
+     */
+    @Nullable
+    public static Node read(@NotNull String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < 8 || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                return null;
+            }
+            return new Reader(buf).readRoot();
+        }
+    }
+
+
+    /**
+     * Count the nodes of {@code ast}.
+     */
+    public static int countNodes(@NotNull Node ast) {
+        int[] count = {0};
+        walk(ast, n -> count[0]++);
+        return count[0];
+    }
+
+
+    /**
+     * Call {@code visitor} on every node of {@code ast}, parents first.
+     */
+    public static void walk(@NotNull Node ast, @NotNull Consumer<Node> visitor) {
+        visitor.accept(ast);
+        forEachChild(ast, child -> walk(child, visitor));
+    }
+
+
+    /**
+     * Call {@code visitor} on the non-null children of {@code n}, in the
+     * order they are written.
+     */
+    private static void forEachChild(@NotNull Node n, @NotNull Consumer<Node> visitor) {
+        Kind kind = kinds.get(n.getClass());
+        if (kind == null) {
+            throw new IllegalArgumentException("unknown node: " + n.getClass());
+        }
+
+        switch (kind) {
+            case ARRAY:
+                visit(visitor, ((Array) n).elts);
+                break;
+            case ASSIGN:
+                visit(visitor, ((Assign) n).target, ((Assign) n).value);
+                break;
+            case ATTRIBUTE:
+                visit(visitor, ((Attribute) n).target, ((Attribute) n).attr);
+                break;
+            case BINOP:
+                visit(visitor, ((BinOp) n).left, ((BinOp) n).right);
+                break;
+            case BLOCK:
+                visit(visitor, ((Block) n).seq);
+                break;
+            case CALL: {
+                Call c = (Call) n;
+                visit(visitor, c.func);
+                visit(visitor, c.args);
+                visit(visitor, c.keywords);
+                visit(visitor, c.kwargs, c.starargs, c.blockarg);
+                break;
+            }
+            case CLASS: {
+                Class c = (Class) n;
+                visit(visitor, c.locator, c.base, c.body, c.docstring);
+                break;
+            }
+            case DICT:
+                visit(visitor, ((Dict) n).keys);
+                visit(visitor, ((Dict) n).values);
+                break;
+            case FOR: {
+                For f = (For) n;
+                visit(visitor, f.target, f.iter, f.body, f.orelse);
+                break;
+            }
+            case FUNCTION: {
+                Function f = (Function) n;
+                visit(visitor, f.isLamba ? null : f.locator);
+                visit(visitor, f.args);
+                visit(visitor, f.body);
+                visit(visitor, f.defaults);
+                visit(visitor, f.vararg, f.kwarg);
+                visit(visitor, f.afterRest);
+                visit(visitor, f.blockarg, f.docstring);
+                break;
+            }
+            case HANDLER: {
+                Handler h = (Handler) n;
+                visit(visitor, h.exceptions);
+                visit(visitor, h.binder, h.handler, h.orelse);
+                break;
+            }
+            case IF:
+                visit(visitor, ((If) n).test, ((If) n).body, ((If) n).orelse);
+                break;
+            case INDEX:
+                visit(visitor, ((Index) n).value);
+                break;
+            case KEYWORD:
+                visit(visitor, ((Keyword) n).value);
+                break;
+            case MODULER:
+                visit(visitor, ((Moduler) n).locator, ((Moduler) n).body, ((Moduler) n).docstring);
+                break;
+            case RAISE:
+                visit(visitor, ((Raise) n).exceptionType, ((Raise) n).inst, ((Raise) n).traceback);
+                break;
+            case REGEXP:
+                visit(visitor, ((Regexp) n).pattern, ((Regexp) n).end);
+                break;
+            case RETURN:
+                visit(visitor, ((Return) n).value);
+                break;
+            case SLICE:
+                visit(visitor, ((Slice) n).lower, ((Slice) n).step, ((Slice) n).upper);
+                break;
+            case STARRED:
+                visit(visitor, ((Starred) n).value);
+                break;
+            case STREMBED:
+                visit(visitor, ((StrEmbed) n).value);
+                break;
+            case SUBSCRIPT:
+                visit(visitor, ((Subscript) n).value, ((Subscript) n).slice);
+                break;
+            case TRY: {
+                Try t = (Try) n;
+                visit(visitor, t.rescue, t.body, t.orelse, t.finalbody);
+                break;
+            }
+            case UNARYOP:
+                visit(visitor, ((UnaryOp) n).operand);
+                break;
+            case UNDEF:
+                visit(visitor, ((Undef) n).targets);
+                break;
+            case WHILE:
+                visit(visitor, ((While) n).test, ((While) n).body, ((While) n).orelse);
+                break;
+            case YIELD:
+                visit(visitor, ((Yield) n).value);
+                break;
+            case CONTROL:
+            case DUMMY:
+            case NAME:
+            case RBFLOAT:
+            case RBINT:
+            case STR:
+            case SYMBOL:
+            case URL:
+            case VOID:
+                break;
+        }
+    }
+
+
+    private static void visit(@NotNull Consumer<Node> visitor, @Nullable Node... nodes) {
+        for (Node n : nodes) {
+            if (n != null) {
+                visitor.accept(n);
+            }
+        }
+    }
+
+
+    private static void visit(@NotNull Consumer<Node> visitor, @Nullable List<? extends Node> nodes) {
+        if (nodes != null) {
+            for (Node n : nodes) {
+                if (n != null) {
+                    visitor.accept(n);
+                }
+            }
+        }
+    }
+
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(4096);
+        }
+
+
+        void writeInt(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+        }
+
+
+        void writeVarint(int v) {
+            while ((v & ~0x7F) != 0) {
+                write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            write(v);
+        }
+
+
+        void writeSigned(int v) {
+            writeVarint((v << 1) ^ (v >> 31));
+        }
+    }
+
+
+    private static class Writer {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        Buffer body = new Buffer();
+        int count = 0;
+
+
+        void writeString(@Nullable String s) {
+            if (s == null) {
+                body.writeVarint(0);
+            } else {
+                Integer idx = strings.get(s);
+                if (idx == null) {
+                    idx = strings.size();
+                    strings.put(s, idx);
+                }
+                body.writeVarint(idx + 1);
+            }
+        }
+
+
+        void writeList(@Nullable List<? extends Node> nodes) {
+            if (nodes == null) {
+                body.writeVarint(0);
+            } else {
+                body.writeVarint(nodes.size() + 1);
+                for (Node n : nodes) {
+                    writeNode(n);
+                }
+            }
+        }
+
+
+        void writeNode(@Nullable Node n) {
+            if (n == null) {
+                body.writeVarint(0);
+                return;
+            }
+
+            Kind kind = kinds.get(n.getClass());
+            if (kind == null) {
+                throw new IllegalArgumentException("can't encode node: " + n.getClass());
+            }
+
+            count++;
+            body.writeVarint(kind.ordinal() + 1);
+            writeString(n.file);
+            body.writeSigned(n.start);
+            body.writeSigned(n.end);
+            body.writeSigned(n.line);
+            body.writeSigned(n.col);
+
+            switch (kind) {
+                case ARRAY:
+                    writeList(((Array) n).elts);
+                    break;
+                case ASSIGN:
+                    writeNode(((Assign) n).target);
+                    writeNode(((Assign) n).value);
+                    break;
+                case ATTRIBUTE:
+                    writeNode(((Attribute) n).target);
+                    writeNode(((Attribute) n).attr);
+                    break;
+                case BINOP:
+                    body.writeVarint(((BinOp) n).op.ordinal());
+                    writeNode(((BinOp) n).left);
+                    writeNode(((BinOp) n).right);
+                    break;
+                case BLOCK:
+                    writeList(((Block) n).seq);
+                    break;
+                case CALL: {
+                    Call c = (Call) n;
+                    writeNode(c.func);
+                    writeList(c.args);
+                    writeList(c.keywords);
+                    writeNode(c.kwargs);
+                    writeNode(c.starargs);
+                    writeNode(c.blockarg);
+                    break;
+                }
+                case CLASS: {
+                    Class c = (Class) n;
+                    writeNode(c.locator);
+                    writeNode(c.base);
+                    writeNode(c.body);
+                    writeNode(c.docstring);
+                    body.write(c.isStatic ? 1 : 0);
+                    break;
+                }
+                case CONTROL:
+                    writeString(((Control) n).command);
+                    break;
+                case DICT:
+                    writeList(((Dict) n).keys);
+                    writeList(((Dict) n).values);
+                    break;
+                case FOR: {
+                    For f = (For) n;
+                    writeNode(f.target);
+                    writeNode(f.iter);
+                    writeNode(f.body);
+                    writeNode(f.orelse);
+                    break;
+                }
+                case FUNCTION: {
+                    Function f = (Function) n;
+                    // lambdas get a fresh generated name when read back
+                    writeNode(f.isLamba ? null : f.locator);
+                    writeList(f.args);
+                    writeNode(f.body);
+                    writeList(f.defaults);
+                    writeNode(f.vararg);
+                    writeNode(f.kwarg);
+                    writeList(f.afterRest);
+                    writeNode(f.blockarg);
+                    writeNode(f.docstring);
+                    break;
+                }
+                case HANDLER: {
+                    Handler h = (Handler) n;
+                    writeList(h.exceptions);
+                    writeNode(h.binder);
+                    writeNode(h.handler);
+                    writeNode(h.orelse);
+                    break;
+                }
+                case IF:
+                    writeNode(((If) n).test);
+                    writeNode(((If) n).body);
+                    writeNode(((If) n).orelse);
+                    break;
+                case INDEX:
+                    writeNode(((Index) n).value);
+                    break;
+                case KEYWORD:
+                    writeString(((Keyword) n).arg);
+                    writeNode(((Keyword) n).value);
+                    break;
+                case MODULER:
+                    writeNode(((Moduler) n).locator);
+                    writeNode(((Moduler) n).body);
+                    writeNode(((Moduler) n).docstring);
+                    break;
+                case NAME:
+                    writeString(((Name) n).id);
+                    body.writeVarint(((Name) n).type.ordinal());
+                    break;
+                case RAISE:
+                    writeNode(((Raise) n).exceptionType);
+                    writeNode(((Raise) n).inst);
+                    writeNode(((Raise) n).traceback);
+                    break;
+                case RBFLOAT:
+                    writeString(Double.toString(((RbFloat) n).value));
+                    break;
+                case RBINT:
+                    writeString(((RbInt) n).value.toString());
+                    break;
+                case REGEXP:
+                    writeNode(((Regexp) n).pattern);
+                    writeNode(((Regexp) n).end);
+                    break;
+                case RETURN:
+                    writeNode(((Return) n).value);
+                    break;
+                case SLICE:
+                    writeNode(((Slice) n).lower);
+                    writeNode(((Slice) n).step);
+                    writeNode(((Slice) n).upper);
+                    break;
+                case STARRED:
+                    writeNode(((Starred) n).value);
+                    break;
+                case STR:
+                    writeString(((Str) n).value);
+                    break;
+                case STREMBED:
+                    writeNode(((StrEmbed) n).value);
+                    break;
+                case SUBSCRIPT:
+                    writeNode(((Subscript) n).value);
+                    writeNode(((Subscript) n).slice);
+                    break;
+                case SYMBOL:
+                    writeString(((Symbol) n).id);
+                    break;
+                case TRY: {
+                    Try t = (Try) n;
+                    writeNode(t.rescue);
+                    writeNode(t.body);
+                    writeNode(t.orelse);
+                    writeNode(t.finalbody);
+                    break;
+                }
+                case UNARYOP:
+                    body.writeVarint(((UnaryOp) n).op.ordinal());
+                    writeNode(((UnaryOp) n).operand);
+                    break;
+                case UNDEF:
+                    writeList(((Undef) n).targets);
+                    break;
+                case URL:
+                    writeString(((Url) n).getURL());
+                    break;
+                case WHILE:
+                    writeNode(((While) n).test);
+                    writeNode(((While) n).body);
+                    writeNode(((While) n).orelse);
+                    break;
+                case YIELD:
+                    writeNode(((Yield) n).value);
+                    break;
+                case DUMMY:
+                case VOID:
+                    break;
+            }
+        }
+    }
+
+
+    private static class Reader {
+        private static final Kind[] KINDS = Kind.values();
+        private static final Op[] OPS = Op.values();
+        private static final NameType[] NAME_TYPES = NameType.values();
+
+        ByteBuffer buf;
+        String[] strings;
+
+
+        Reader(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+
+        Node readRoot() {
+            strings = new String[readVarint()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[readVarint()];
+                buf.get(bytes);
+                strings[i] = new String(bytes, Utils.UTF_8);
+            }
+            return readNode();
+        }
+
+
+        int readVarint() {
+            int v = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = buf.get();
+                v |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+
+        int readSigned() {
+            int v = readVarint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+
+        @Nullable
+        String readString() {
+            int idx = readVarint();
+            return idx == 0 ? null : strings[idx - 1];
+        }
+
+
+        @Nullable
+        <T extends Node> List<T> readList() {
+            int size = readVarint();
+            if (size == 0) {
+                return null;
+            }
+            List<T> ret = new ArrayList<>(size - 1);
+            for (int i = 0; i < size - 1; i++) {
+                ret.add(read());
+            }
+            return ret;
+        }
+
+
+        /**
+         * The next node, as the type the constructor it is passed to wants.
+         * The file was written from a node of that type.
+         */
+        @Nullable
+        @SuppressWarnings("unchecked")
+        <T extends Node> T read() {
+            return (T) readNode();
+        }
+
+
+        @Nullable
+        Node readNode() {
+            int tag = readVarint();
+            if (tag == 0) {
+                return null;
+            }
+
+            Kind kind = KINDS[tag - 1];
+            String file = readString();
+            int start = readSigned();
+            int end = readSigned();
+            int line = readSigned();
+            int col = readSigned();
+
+            switch (kind) {
+                case ARRAY:
+                    return new Array(readList(), file, start, end, line, col);
+                case ASSIGN:
+                    return new Assign(read(), read(), file, start, end, line, col);
+                case ATTRIBUTE:
+                    return new Attribute(read(), read(), file, start, end, line, col);
+                case BINOP:
+                    return new BinOp(OPS[readVarint()], read(), read(), file, start, end, line, col);
+                case BLOCK:
+                    return new Block(readList(), file, start, end, line, col);
+                case CALL:
+                    return new Call(read(), readList(), readList(), read(), read(), read(),
+                            file, start, end, line, col);
+                case CLASS:
+                    return new Class(read(), read(), read(), read(), buf.get() != 0,
+                            file, start, end, line, col);
+                case CONTROL:
+                    return new Control(readString(), file, start, end, line, col);
+                case DICT:
+                    return new Dict(readList(), readList(), file, start, end, line, col);
+                case DUMMY:
+                    return new Dummy(file, start, end, line, col);
+                case FOR:
+                    return new For(read(), read(), read(), read(), file, start, end, line, col);
+                case FUNCTION:
+                    return new Function(read(), readList(), read(), readList(), read(), read(),
+                            readList(), read(), read(), file, start, end, line, col);
+                case HANDLER:
+                    return new Handler(readList(), read(), read(), read(), file, start, end, line, col);
+                case IF:
+                    return new If(read(), read(), read(), file, start, end, line, col);
+                case INDEX:
+                    return new Index(read(), file, start, end, line, col);
+                case KEYWORD:
+                    return new Keyword(readString(), read(), file, start, end, line, col);
+                case MODULER:
+                    return new Moduler(read(), read(), read(), file, start, end, line, col);
+                case NAME:
+                    return new Name(readString(), NAME_TYPES[readVarint()], file, start, end, line, col);
+                case RAISE:
+                    return new Raise(read(), read(), read(), file, start, end, line, col);
+                case RBFLOAT:
+                    return new RbFloat(readString(), file, start, end, line, col);
+                case RBINT:
+                    return new RbInt(readString(), file, start, end, line, col);
+                case REGEXP:
+                    return new Regexp(read(), read(), file, start, end, line, col);
+                case RETURN:
+                    return new Return(read(), file, start, end, line, col);
+                case SLICE:
+                    return new Slice(read(), read(), read(), file, start, end, line, col);
+                case STARRED:
+                    return new Starred(read(), file, start, end, line, col);
+                case STR:
+                    return new Str(readString(), file, start, end, line, col);
+                case STREMBED:
+                    return new StrEmbed(read(), file, start, end, line, col);
+                case SUBSCRIPT:
+                    return new Subscript(read(), read(), file, start, end, line, col);
+                case SYMBOL:
+                    return new Symbol(readString(), file, start, end, line, col);
+                case TRY:
+                    return new Try(read(), read(), read(), read(), file, start, end, line, col);
+                case UNARYOP:
+                    return new UnaryOp(OPS[readVarint()], read(), file, start, end, line, col);
+                case UNDEF:
+                    return new Undef(readList(), file, start, end, line, col);
+                case URL:
+                    return new Url(readString());
+                case VOID:
+                    return new Void(file, start, end, line, col);
+                case WHILE:
+                    return new While(read(), read(), read(), file, start, end, line, col);
+                case YIELD:
+                    return new Yield(read(), file, start, end, line, col);
+                default:
+                    throw new IllegalStateException("unknown node kind: " + kind);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.yinwang.rubysonar;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadConstraints;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.rubysonar.ast.Node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Builds AST nodes directly from the jsonizer's token stream. Objects are
+ * converted bottom-up as soon as they close, so only the fields of the
+ * objects on the current path are held in memory, and positions are kept
+ * as primitive ints instead of boxed Doubles.
+ */
+public class AstDecoder {
+
+    // ruby nests ASTs as deep as the source does, don't cap it
+    private static final JsonFactory factory = JsonFactory.builder()
+            .streamReadConstraints(StreamReadConstraints.builder()
+                    .maxNestingDepth(Integer.MAX_VALUE)
+                    .maxStringLength(Integer.MAX_VALUE)
+                    .build())
+            .build();
+
+    @NotNull
+    private Parser parser;
+
+
+    public AstDecoder(@NotNull Parser parser) {
+        this.parser = parser;
+    }
+
+
+    @Nullable
+    public Node decode(@NotNull byte[] json) throws IOException {
+        try (JsonParser jp = factory.createParser(json)) {
+            if (jp.nextToken() == null) {
+                return null;
+            }
+            return parser.convert(readValue(jp, false));
+        }
+    }
+
+
+    /**
+     * Objects under "params", "args" and "op", and the entries of a hash,
+     * are read by convert as plain maps, so they are kept raw. Everything
+     * else with a known type becomes a node.
+     */
+    private static boolean isRawKey(String key) {
+        return key.equals("params") || key.equals("args") || key.equals("op");
+    }
+
+
+    @Nullable
+    private Object readValue(@NotNull JsonParser jp, boolean raw) throws IOException {
+        JsonToken token = jp.currentToken();
+        switch (token) {
+            case START_OBJECT:
+                return readObject(jp, raw);
+            case START_ARRAY:
+                return readArray(jp, raw);
+            case VALUE_STRING:
+                return jp.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return jp.getNumberValue();
+            case VALUE_TRUE:
+                return true;
+            case VALUE_FALSE:
+                return false;
+            default:
+                return null;
+        }
+    }
+
+
+    @NotNull
+    private List<Object> readArray(@NotNull JsonParser jp, boolean raw) throws IOException {
+        List<Object> ret = new ArrayList<>();
+        while (jp.nextToken() != JsonToken.END_ARRAY) {
+            ret.add(readValue(jp, raw));
+        }
+        return ret;
+    }
+
+
+    @Nullable
+    private Object readObject(@NotNull JsonParser jp, boolean raw) throws IOException {
+        Map<String, Object> fields = new HashMap<>();
+        String type = null;
+        int start = 0;
+        int end = 1;
+        int line = 0;
+        int col = 0;
+
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String key = jp.getCurrentName();
+            JsonToken token = jp.nextToken();
+            boolean isInt = token == JsonToken.VALUE_NUMBER_INT;
+
+            if (key.equals("type") && token == JsonToken.VALUE_STRING) {
+                type = jp.getText();
+            } else if (key.equals("start") && isInt) {
+                start = jp.getIntValue();
+            } else if (key.equals("end") && isInt) {
+                end = jp.getIntValue();
+            } else if (key.equals("start_line") && isInt) {
+                line = jp.getIntValue();
+            } else if (key.equals("end_line") && isInt) {
+                col = jp.getIntValue() + 1;
+            } else {
+                fields.put(key, readValue(jp, isRawKey(key) || key.equals("entries")));
+            }
+        }
+
+        NodeKind kind = raw || type == null ? null : NodeKind.of(type);
+        if (kind == null) {
+            if (type != null) {
+                fields.put("type", type);
+            }
+            return raw || !fields.isEmpty() ? fields : null;
+        } else {
+            return parser.convert(kind, fields, start, end, line, col);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.rubysonar.ast.Node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Builds AST nodes from the jsonizer's binary frames (see BinaryWriter in
+ * dump_ruby.rb).  Nodes carry their {@link NodeKind} as a small integer and
+ * their positions as varints, map keys are sent once per file and then
+ * referred to by number.  Otherwise it produces the same values as
+ * {@link AstDecoder} does for the JSON frames.
+ */
+public class BinaryAstDecoder {
+
+    private static final int NIL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int INT = 3;
+    private static final int FLOAT = 4;
+    private static final int STRING = 5;
+    private static final int ARRAY = 6;
+    private static final int MAP = 7;
+    private static final int NODE = 8;
+
+    @NotNull
+    private Parser parser;
+    private byte[] buf;
+    private int pos;
+    private List<String> keys;
+
+
+    public BinaryAstDecoder(@NotNull Parser parser) {
+        this.parser = parser;
+    }
+
+
+    @Nullable
+    public Node decode(@NotNull byte[] data) throws IOException {
+        buf = data;
+        pos = 0;
+        keys = new ArrayList<>();
+        try {
+            return parser.convert(readValue(false));
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("truncated frame");
+        } finally {
+            buf = null;
+            keys = null;
+        }
+    }
+
+
+    @Nullable
+    private Object readValue(boolean raw) throws IOException {
+        int tag = buf[pos++] & 0xff;
+        switch (tag) {
+            case NIL:
+                return null;
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case INT: {
+                long n = readVarint();
+                long v = (n >>> 1) ^ -(n & 1);
+                if (v == (int) v) {
+                    return (int) v;
+                }
+                return v;
+            }
+            case FLOAT: {
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | (buf[pos++] & 0xff);
+                }
+                return Double.longBitsToDouble(bits);
+            }
+            case STRING:
+                return readString();
+            case ARRAY: {
+                int n = (int) readVarint();
+                List<Object> ret = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    ret.add(readValue(raw));
+                }
+                return ret;
+            }
+            case MAP: {
+                Map<String, Object> fields = readFields();
+                return raw || !fields.isEmpty() ? fields : null;
+            }
+            case NODE:
+                return readNode(raw);
+            default:
+                throw new IOException("bad tag " + tag + " at " + (pos - 1));
+        }
+    }
+
+
+    @Nullable
+    private Object readNode(boolean raw) throws IOException {
+        int tag = (int) readVarint();
+        NodeKind kind = NodeKind.of(tag);
+        if (kind == null) {
+            throw new IOException("unknown node kind " + tag);
+        }
+
+        // positions are sent plus one, 0 when missing
+        long start = readVarint();
+        long end = readVarint();
+        long line = readVarint();
+        long endLine = readVarint();
+        Map<String, Object> fields = readFields();
+
+        if (raw) {
+            fields.put("type", kind.getName());
+            return fields;
+        }
+        return parser.convert(kind, fields,
+                start == 0 ? 0 : (int) start - 1,
+                end == 0 ? 1 : (int) end - 1,
+                line == 0 ? 0 : (int) line - 1,
+                endLine == 0 ? 0 : (int) endLine);
+    }
+
+
+    /**
+     * Objects under "params", "args", "op" and "entries" are read by convert
+     * as plain maps, as in {@link AstDecoder}.
+     */
+    @NotNull
+    private Map<String, Object> readFields() throws IOException {
+        int n = (int) readVarint();
+        Map<String, Object> fields = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            String key = readKey();
+            boolean raw = key.equals("params") || key.equals("args") || key.equals("op") || key.equals("entries");
+            fields.put(key, readValue(raw));
+        }
+        return fields;
+    }
+
+
+    @NotNull
+    private String readKey() throws IOException {
+        int index = (int) readVarint();
+        if (index == keys.size()) {
+            keys.add(readString());
+        } else if (index > keys.size()) {
+            throw new IOException("bad key reference " + index);
+        }
+        return keys.get(index);
+    }
+
+
+    @NotNull
+    private String readString() {
+        int n = (int) readVarint();
+        String s = new String(buf, pos, n, Utils.UTF_8);
+        pos += n;
+        return s;
+    }
+
+
+    private long readVarint() {
+        long ret = 0;
+        int shift = 0;
+        while (true) {
+            int b = buf[pos++] & 0xff;
+            ret |= (long) (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return ret;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+/**
+ * Lists the ruby files of a tree in one pass.  Directories are walked in
+ * parallel on a fork-join pool, the result is in a stable depth-first order
+ * so progress, parsing and analysis all see the same list.
+ *
+ * Files are skipped according to gitignore-style globs read from
+ * {@code .rubysonarignore} and {@code .gitignore} at the root of the tree:
+ * a pattern without a slash matches a name at any depth, one with a slash
+ * matches the path relative to the root, a trailing slash matches only
+ * directories and a leading {@code !} takes a file back in.  The last
+ * matching pattern wins.
+ */
+public class FileEnumerator {
+
+    private static final String SUFFIX = ".rb";
+    private static final String[] IGNORE_FILES = {".rubysonarignore", ".gitignore"};
+
+    private static class Rule {
+        final PathMatcher matcher;
+        final boolean anchored;
+        final boolean dirOnly;
+        final boolean negated;
+
+
+        Rule(PathMatcher matcher, boolean anchored, boolean dirOnly, boolean negated) {
+            this.matcher = matcher;
+            this.anchored = anchored;
+            this.dirOnly = dirOnly;
+            this.negated = negated;
+        }
+    }
+
+
+    @NotNull
+    private Path root;
+    @NotNull
+    private List<Rule> rules = new ArrayList<>();
+    @NotNull
+    private Set<Object> visitedDirs = ConcurrentHashMap.newKeySet();
+
+
+    public FileEnumerator(@NotNull String root) {
+        this.root = Paths.get(root);
+        for (String name : IGNORE_FILES) {
+            File f = new File(root, name);
+            if (f.canRead()) {
+                try {
+                    for (String line : Files.readAllLines(f.toPath(), Utils.UTF_8)) {
+                        addRule(line);
+                    }
+                } catch (IOException e) {
+                    Utils.msg("Failed to read " + f + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Adds one line of ignore syntax after the ones read from the ignore files.
+     */
+    public void addRule(@NotNull String line) {
+        String pattern = line.trim();
+        if (pattern.isEmpty() || pattern.startsWith("#")) {
+            return;
+        }
+
+        boolean negated = pattern.startsWith("!");
+        if (negated) {
+            pattern = pattern.substring(1);
+        }
+        boolean dirOnly = pattern.endsWith("/");
+        if (dirOnly) {
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        boolean anchored = pattern.contains("/");
+        if (pattern.startsWith("/")) {
+            pattern = pattern.substring(1);
+        }
+        if (pattern.isEmpty()) {
+            return;
+        }
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        rules.add(new Rule(matcher, anchored, dirOnly, negated));
+    }
+
+
+    public boolean isIgnored(@NotNull Path path, boolean isDir) {
+        if (rules.isEmpty() || path.equals(root)) {
+            return false;
+        }
+        Path rel = root.relativize(path);
+        Path name = path.getFileName();
+
+        boolean ignored = false;
+        for (Rule r : rules) {
+            if (r.dirOnly && !isDir) {
+                continue;
+            }
+            if (r.matcher.matches(r.anchored ? rel : name)) {
+                ignored = !r.negated;
+            }
+        }
+        return ignored;
+    }
+
+
+    /**
+     * @return the canonical paths of all ruby files that aren't ignored, or
+     * just the root if it is a file itself
+     */
+    @NotNull
+    public List<String> list() {
+        if (!Files.isDirectory(root)) {
+            if (root.toString().endsWith(SUFFIX) && Files.isReadable(root)) {
+                return Collections.singletonList(Utils.unifyPath(root.toString()));
+            }
+            return Collections.emptyList();
+        }
+        try {
+            Object key = Files.readAttributes(root, BasicFileAttributes.class).fileKey();
+            visitedDirs.add(key != null ? key : root.toAbsolutePath().normalize());
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+        return ForkJoinPool.commonPool().invoke(new Walk(root));
+    }
+
+
+    /**
+     * Lists one directory with {@link Files#walkFileTree} at depth one, forks
+     * a task per subdirectory and joins their results in name order.
+     */
+    private class Walk extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+
+
+        Walk(Path dir) {
+            this.dir = dir;
+        }
+
+
+        @Override
+        protected List<String> compute() {
+            List<Path> entries = new ArrayList<>();
+            List<Path> subdirs = new ArrayList<>();
+            try {
+                Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path p, BasicFileAttributes attrs) {
+                        if (attrs.isDirectory()) {
+                            if (isIgnored(p, true)) {
+                                return FileVisitResult.CONTINUE;
+                            }
+                            // symlinks may loop back
+                            Object key = attrs.fileKey() != null ? attrs.fileKey() : p.toAbsolutePath().normalize();
+                            if (visitedDirs.add(key)) {
+                                subdirs.add(p);
+                                entries.add(p);
+                            }
+                        } else if (p.toString().endsWith(SUFFIX) && !isIgnored(p, false)) {
+                            entries.add(p);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path p, IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                Utils.msg("Failed to list " + dir + ": " + e.getMessage());
+                return Collections.emptyList();
+            }
+
+            Collections.sort(entries);
+            Map<Path, Walk> tasks = new HashMap<>();
+            for (Path p : subdirs) {
+                Walk w = new Walk(p);
+                w.fork();
+                tasks.put(p, w);
+            }
+
+            List<String> ret = new ArrayList<>();
+            for (Path p : entries) {
+                Walk w = tasks.get(p);
+                if (w != null) {
+                    ret.addAll(w.join());
+                } else {
+                    ret.add(Utils.unifyPath(p.toString()));
+                }
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Persistent table of path -> (mtime, size, inode, SHA-1). A file is only
+ * read and hashed when its stat metadata differs from the recorded one, so
+ * the AST cache can be probed, loaded and stored with a single hash per
+ * changed file.
+ */
+public class FileHashIndex {
+
+    private static final int VERSION = 1;
+
+    private static class Entry {
+        final long mtime;
+        final long size;
+        final String inode;
+        final String hash;
+
+
+        Entry(long mtime, long size, String inode, String hash) {
+            this.mtime = mtime;
+            this.size = size;
+            this.inode = inode;
+            this.hash = hash;
+        }
+
+
+        boolean matches(long mtime, long size, String inode) {
+            return this.mtime == mtime && this.size == size && this.inode.equals(inode);
+        }
+    }
+
+
+    @NotNull
+    private String indexFile;
+    private Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+
+    public FileHashIndex(@NotNull String indexFile) {
+        this.indexFile = indexFile;
+        load();
+    }
+
+
+    /**
+     * SHA-1 of the file's contents, or {@code null} if it can't be read.
+     */
+    @Nullable
+    public String getHash(@NotNull String path) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+
+        long mtime = attrs.lastModifiedTime().toMillis();
+        long size = attrs.size();
+        Object key = attrs.fileKey();
+        String inode = key == null ? "" : key.toString();
+
+        Entry e = entries.get(path);
+        if (e != null && e.matches(mtime, size, inode)) {
+            return e.hash;
+        }
+
+        if (!Utils.isReadableFile(path)) {
+            return null;
+        }
+        String hash = Utils.getSHA(path);
+        entries.put(path, new Entry(mtime, size, inode, hash));
+        dirty = true;
+        return hash;
+    }
+
+
+    public void remove(String path) {
+        if (entries.remove(path) != null) {
+            dirty = true;
+        }
+    }
+
+
+    public void clear() {
+        entries.clear();
+        dirty = true;
+    }
+
+
+    private void load() {
+        File f = new File(indexFile);
+        if (!f.canRead()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String path = in.readUTF();
+                long mtime = in.readLong();
+                long size = in.readLong();
+                String inode = in.readUTF();
+                String hash = in.readUTF();
+                entries.put(path, new Entry(mtime, size, inode, hash));
+            }
+        } catch (IOException e) {
+            Utils.msg("Ignoring corrupt cache index: " + indexFile);
+            entries.clear();
+        }
+    }
+
+
+    /**
+     * Write the table back if anything changed since it was loaded.
+     */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        // cleared before the copy: entries added during the save make it
+        // dirty again and are saved next time
+        dirty = false;
+
+        File tmp = new File(indexFile + "." + Utils.newSessionId());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            Map<String, Entry> snapshot = new ConcurrentHashMap<>(entries);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.size);
+                out.writeUTF(entry.inode);
+                out.writeUTF(entry.hash);
+            }
+        } catch (IOException e) {
+            Utils.msg("Failed to write cache index: " + indexFile);
+            tmp.delete();
+            dirty = true;
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), Paths.get(indexFile), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Utils.msg("Failed to write cache index: " + indexFile);
+            tmp.delete();
+            dirty = true;
+        }
+    }
+}
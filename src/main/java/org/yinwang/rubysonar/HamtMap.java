@@ -0,0 +1,679 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+
+/**
+ * A map backed by a persistent hash array mapped trie.  An update copies
+ * only the path from the root to the changed entry, the rest of the trie
+ * is shared, so {@link #fork} is O(1) and the fork and the original can
+ * then be changed independently.  {@link #diff} visits only the parts of
+ * two forks of the same map that have diverged.
+ *
+ * Updates swap the root atomically, so the map can be shared between
+ * threads; iteration sees the entries as of its start.  Null keys and
+ * values are not supported.
+ */
+public class HamtMap<K, V> extends AbstractMap<K, V> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    // returned by lookups that find nothing
+    private static final Object NOT_FOUND = new Object();
+
+
+    /**
+     * Receives a key whose value differs between two maps, with its value in
+     * each map, {@code null} where it is missing.
+     */
+    public interface DiffConsumer<K, V> {
+        void accept(K key, @Nullable V mine, @Nullable V theirs);
+    }
+
+
+    private static final class Root implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Nullable
+        final Node node;
+        final int size;
+
+
+        Root(@Nullable Node node, int size) {
+            this.node = node;
+            this.size = size;
+        }
+    }
+
+
+    private static final Root EMPTY_ROOT = new Root(null, 0);
+
+    @NotNull
+    private final AtomicReference<Root> root;
+
+
+    public HamtMap() {
+        this(EMPTY_ROOT);
+    }
+
+
+    private HamtMap(@NotNull Root root) {
+        this.root = new AtomicReference<>(root);
+    }
+
+
+    /**
+     * A copy of this map that shares the whole trie with it.
+     */
+    @NotNull
+    public HamtMap<K, V> fork() {
+        return new HamtMap<>(root.get());
+    }
+
+
+    @Override
+    public int size() {
+        return root.get().size;
+    }
+
+
+    @Override
+    public boolean isEmpty() {
+        return root.get().size == 0;
+    }
+
+
+    @Override
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Object v = find(root.get().node, key);
+        return v == NOT_FOUND ? null : (V) v;
+    }
+
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(root.get().node, key) != NOT_FOUND;
+    }
+
+
+    private static Object find(@Nullable Node node, Object key) {
+        if (node == null || key == null) {
+            return NOT_FOUND;
+        }
+        return node.find(0, key.hashCode(), key);
+    }
+
+
+    @Override
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V put(@NotNull K key, @NotNull V value) {
+        int hash = key.hashCode();
+        while (true) {
+            Root r = root.get();
+            Change change = new Change();
+            Node node = r.node == null
+                    ? new BitmapNode(0, new Object[0]).put(0, hash, key, value, change)
+                    : r.node.put(0, hash, key, value, change);
+            if (node == r.node) {
+                return value;
+            }
+            Root next = new Root(node, change.old == NOT_FOUND ? r.size + 1 : r.size);
+            if (root.compareAndSet(r, next)) {
+                return change.old == NOT_FOUND ? null : (V) change.old;
+            }
+        }
+    }
+
+
+    @Override
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+        int hash = key.hashCode();
+        while (true) {
+            Root r = root.get();
+            if (r.node == null) {
+                return null;
+            }
+            Change change = new Change();
+            Node node = r.node.remove(0, hash, key, change);
+            if (change.old == NOT_FOUND) {
+                return null;
+            }
+            if (root.compareAndSet(r, new Root(node, r.size - 1))) {
+                return (V) change.old;
+            }
+        }
+    }
+
+
+    @Override
+    public void clear() {
+        root.set(EMPTY_ROOT);
+    }
+
+
+    @NotNull
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @NotNull
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator(root.get().node);
+            }
+
+
+            @Override
+            public int size() {
+                return HamtMap.this.size();
+            }
+        };
+    }
+
+
+    /**
+     * Calls {@code consumer} for each key that maps to different values
+     * (by identity) in {@code mine} and {@code theirs}.  Subtries shared by
+     * two forks of the same map are skipped without looking into them.
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> void diff(@NotNull Map<K, V> mine, @NotNull Map<K, V> theirs,
+                                   @NotNull DiffConsumer<K, V> consumer)
+    {
+        if (mine instanceof HamtMap && theirs instanceof HamtMap) {
+            Node a = ((HamtMap<K, V>) mine).root.get().node;
+            Node b = ((HamtMap<K, V>) theirs).root.get().node;
+            diff(a, b, 0, (DiffConsumer<Object, Object>) consumer);
+            return;
+        }
+
+        for (Map.Entry<K, V> e : mine.entrySet()) {
+            V v = theirs.get(e.getKey());
+            if (v != e.getValue()) {
+                consumer.accept(e.getKey(), e.getValue(), v);
+            }
+        }
+        for (Map.Entry<K, V> e : theirs.entrySet()) {
+            if (!mine.containsKey(e.getKey())) {
+                consumer.accept(e.getKey(), null, e.getValue());
+            }
+        }
+    }
+
+
+    private static void diff(@Nullable Node a, @Nullable Node b, int shift, @NotNull DiffConsumer<Object, Object> c) {
+        if (a == b) {
+            return;
+        }
+        if (a == null) {
+            forEach(b, (k, v) -> c.accept(k, null, v));
+            return;
+        }
+        if (b == null) {
+            forEach(a, (k, v) -> c.accept(k, v, null));
+            return;
+        }
+
+        if (!(a instanceof BitmapNode) || !(b instanceof BitmapNode)) {
+            diffEntries(a, b, shift, c);
+            return;
+        }
+
+        BitmapNode x = (BitmapNode) a;
+        BitmapNode y = (BitmapNode) b;
+        int bits = x.bitmap | y.bitmap;
+        while (bits != 0) {
+            int bit = bits & -bits;
+            bits &= ~bit;
+
+            if ((y.bitmap & bit) == 0) {
+                int i = x.index(bit);
+                diffSlot(x.array[i], x.array[i + 1], null, null, shift, c);
+            } else if ((x.bitmap & bit) == 0) {
+                int j = y.index(bit);
+                diffSlot(null, null, y.array[j], y.array[j + 1], shift, c);
+            } else {
+                int i = x.index(bit);
+                int j = y.index(bit);
+                diffSlot(x.array[i], x.array[i + 1], y.array[j], y.array[j + 1], shift, c);
+            }
+        }
+    }
+
+
+    /**
+     * Compares one slot of two bitmap nodes, each holding nothing (both
+     * {@code null}), an entry, or a subtrie (a {@code null} key).
+     */
+    private static void diffSlot(@Nullable Object ka, @Nullable Object va, @Nullable Object kb, @Nullable Object vb,
+                                 int shift, @NotNull DiffConsumer<Object, Object> c)
+    {
+        if (va == vb && ka == kb) {
+            return;
+        }
+        if (va == null) {
+            reportSlot(kb, vb, false, c);
+        } else if (vb == null) {
+            reportSlot(ka, va, true, c);
+        } else if (ka == null && kb == null) {
+            diff((Node) va, (Node) vb, shift + BITS, c);
+        } else if (ka != null && kb != null) {
+            if (ka.equals(kb)) {
+                if (va != vb) {
+                    c.accept(ka, va, vb);
+                }
+            } else {
+                c.accept(ka, va, null);
+                c.accept(kb, null, vb);
+            }
+        } else if (ka == null) {
+            Object v = ((Node) va).find(shift + BITS, kb.hashCode(), kb);
+            forEach((Node) va, (k, w) -> {
+                if (!k.equals(kb)) {
+                    c.accept(k, w, null);
+                }
+            });
+            if (v != vb) {
+                c.accept(kb, v == NOT_FOUND ? null : v, vb);
+            }
+        } else {
+            Object v = ((Node) vb).find(shift + BITS, ka.hashCode(), ka);
+            if (v != va) {
+                c.accept(ka, va, v == NOT_FOUND ? null : v);
+            }
+            forEach((Node) vb, (k, w) -> {
+                if (!k.equals(ka)) {
+                    c.accept(k, null, w);
+                }
+            });
+        }
+    }
+
+
+    private static void reportSlot(@Nullable Object k, @NotNull Object v, boolean mine,
+                                   @NotNull DiffConsumer<Object, Object> c)
+    {
+        if (k == null) {
+            forEach((Node) v, (key, w) -> c.accept(key, mine ? w : null, mine ? null : w));
+        } else {
+            c.accept(k, mine ? v : null, mine ? null : v);
+        }
+    }
+
+
+    private static void diffEntries(@NotNull Node a, @NotNull Node b, int shift, @NotNull DiffConsumer<Object, Object> c) {
+        forEach(a, (k, v) -> {
+            Object w = b.find(shift, k.hashCode(), k);
+            if (w != v) {
+                c.accept(k, v, w == NOT_FOUND ? null : w);
+            }
+        });
+        forEach(b, (k, w) -> {
+            if (a.find(shift, k.hashCode(), k) == NOT_FOUND) {
+                c.accept(k, null, w);
+            }
+        });
+    }
+
+
+    private static void forEach(@NotNull Node node, @NotNull BiConsumer<Object, Object> f) {
+        Object[] array = node.array;
+        for (int i = 0; i < array.length; i += 2) {
+            if (array[i] == null) {
+                forEach((Node) array[i + 1], f);
+            } else {
+                f.accept(array[i], array[i + 1]);
+            }
+        }
+    }
+
+
+    // the value an update replaced or removed, NOT_FOUND if there was none
+    private static final class Change {
+        Object old = NOT_FOUND;
+    }
+
+
+    /**
+     * Key/value pairs in {@code array}; in bitmap nodes a pair with a
+     * {@code null} key holds a subtrie as its value.
+     */
+    private abstract static class Node implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @NotNull
+        final Object[] array;
+
+
+        Node(@NotNull Object[] array) {
+            this.array = array;
+        }
+
+
+        abstract Object find(int shift, int hash, @NotNull Object key);
+
+
+        @NotNull
+        abstract Node put(int shift, int hash, @NotNull Object key, @NotNull Object value, @NotNull Change change);
+
+
+        @Nullable
+        abstract Node remove(int shift, int hash, @NotNull Object key, @NotNull Change change);
+    }
+
+
+    /**
+     * A trie level: bit i of the bitmap is set if there is a pair for the
+     * hash bits i at this level's shift, the pairs are in bit order.
+     */
+    private static final class BitmapNode extends Node {
+        private static final long serialVersionUID = 1L;
+
+        final int bitmap;
+
+
+        BitmapNode(int bitmap, @NotNull Object[] array) {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+
+        int index(int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+
+        @Override
+        Object find(int shift, int hash, @NotNull Object key) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return NOT_FOUND;
+            }
+            int i = index(bit);
+            Object k = array[i];
+            if (k == null) {
+                return ((Node) array[i + 1]).find(shift + BITS, hash, key);
+            }
+            return key.equals(k) ? array[i + 1] : NOT_FOUND;
+        }
+
+
+        @NotNull
+        @Override
+        Node put(int shift, int hash, @NotNull Object key, @NotNull Object value, @NotNull Change change) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int i = index(bit);
+
+            if ((bitmap & bit) == 0) {
+                Object[] a = new Object[array.length + 2];
+                System.arraycopy(array, 0, a, 0, i);
+                a[i] = key;
+                a[i + 1] = value;
+                System.arraycopy(array, i, a, i + 2, array.length - i);
+                return new BitmapNode(bitmap | bit, a);
+            }
+
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node sub = ((Node) v).put(shift + BITS, hash, key, value, change);
+                return sub == v ? this : with(i, null, sub);
+            }
+            if (key.equals(k)) {
+                change.old = v;
+                return v == value ? this : with(i, k, value);
+            }
+            return with(i, null, pair(shift + BITS, k.hashCode(), k, v, hash, key, value));
+        }
+
+
+        @Nullable
+        @Override
+        Node remove(int shift, int hash, @NotNull Object key, @NotNull Change change) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = index(bit);
+            Object k = array[i];
+            Object v = array[i + 1];
+
+            if (k == null) {
+                Node sub = ((Node) v).remove(shift + BITS, hash, key, change);
+                if (sub == v) {
+                    return this;
+                } else if (sub == null) {
+                    return without(bit, i);
+                } else if (sub.array.length == 2 && sub.array[0] != null) {
+                    // a single entry moves up in place of its subtrie
+                    return with(i, sub.array[0], sub.array[1]);
+                } else {
+                    return with(i, null, sub);
+                }
+            }
+            if (key.equals(k)) {
+                change.old = v;
+                return without(bit, i);
+            }
+            return this;
+        }
+
+
+        @NotNull
+        private BitmapNode with(int i, @Nullable Object key, @NotNull Object value) {
+            Object[] a = array.clone();
+            a[i] = key;
+            a[i + 1] = value;
+            return new BitmapNode(bitmap, a);
+        }
+
+
+        @Nullable
+        private BitmapNode without(int bit, int i) {
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, i);
+            System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+            return new BitmapNode(bitmap & ~bit, a);
+        }
+    }
+
+
+    /**
+     * Keys whose hashes are equal in all bits, compared one by one.
+     */
+    private static final class CollisionNode extends Node {
+        private static final long serialVersionUID = 1L;
+
+        final int hash;
+
+
+        CollisionNode(int hash, @NotNull Object[] array) {
+            super(array);
+            this.hash = hash;
+        }
+
+
+        private int indexOf(@NotNull Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+
+        @Override
+        Object find(int shift, int hash, @NotNull Object key) {
+            if (hash != this.hash) {
+                return NOT_FOUND;
+            }
+            int i = indexOf(key);
+            return i < 0 ? NOT_FOUND : array[i + 1];
+        }
+
+
+        @NotNull
+        @Override
+        Node put(int shift, int hash, @NotNull Object key, @NotNull Object value, @NotNull Change change) {
+            int i = indexOf(key);
+            if (i < 0) {
+                Object[] a = new Object[array.length + 2];
+                System.arraycopy(array, 0, a, 0, array.length);
+                a[array.length] = key;
+                a[array.length + 1] = value;
+                return new CollisionNode(hash, a);
+            }
+            change.old = array[i + 1];
+            if (array[i + 1] == value) {
+                return this;
+            }
+            Object[] a = array.clone();
+            a[i + 1] = value;
+            return new CollisionNode(hash, a);
+        }
+
+
+        @Nullable
+        @Override
+        Node remove(int shift, int hash, @NotNull Object key, @NotNull Change change) {
+            int i = hash == this.hash ? indexOf(key) : -1;
+            if (i < 0) {
+                return this;
+            }
+            change.old = array[i + 1];
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, i);
+            System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+            return new CollisionNode(hash, a);
+        }
+    }
+
+
+    /**
+     * A node holding two entries that agree in the hash bits below
+     * {@code shift}.
+     */
+    @NotNull
+    private static Node pair(int shift, int h1, Object k1, Object v1, int h2, Object k2, Object v2) {
+        if (shift >= 32) {
+            return new CollisionNode(h1, new Object[]{k1, v1, k2, v2});
+        }
+        int b1 = (h1 >>> shift) & MASK;
+        int b2 = (h2 >>> shift) & MASK;
+        if (b1 == b2) {
+            return new BitmapNode(1 << b1, new Object[]{null, pair(shift + BITS, h1, k1, v1, h2, k2, v2)});
+        } else if (b1 < b2) {
+            return new BitmapNode((1 << b1) | (1 << b2), new Object[]{k1, v1, k2, v2});
+        } else {
+            return new BitmapNode((1 << b1) | (1 << b2), new Object[]{k2, v2, k1, v1});
+        }
+    }
+
+
+    /**
+     * Depth-first over a trie as of the iterator's creation.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        // a trie is at most 8 levels deep, 7 bitmap levels and collisions
+        private final Object[][] arrays = new Object[8][];
+        private final int[] positions = new int[8];
+        private int depth = -1;
+        @Nullable
+        private Map.Entry<K, V> next;
+        @Nullable
+        private K last;
+
+
+        EntryIterator(@Nullable Node node) {
+            if (node != null) {
+                push(node.array);
+                advance();
+            }
+        }
+
+
+        private void push(@NotNull Object[] array) {
+            depth++;
+            arrays[depth] = array;
+            positions[depth] = 0;
+        }
+
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Object[] array = arrays[depth];
+                int i = positions[depth];
+                if (i >= array.length) {
+                    arrays[depth--] = null;
+                    continue;
+                }
+                positions[depth] = i + 2;
+                if (array[i] == null) {
+                    push(((Node) array[i + 1]).array);
+                } else {
+                    next = new SimpleImmutableEntry<>((K) array[i], (V) array[i + 1]);
+                    return;
+                }
+            }
+        }
+
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> ret = next;
+            last = ret.getKey();
+            advance();
+            return ret;
+        }
+
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            HamtMap.this.remove(last);
+            last = null;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.rubysonar.ast.Node;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Runs the jsonizer with JRuby inside the JVM, so no ruby processes have
+ * to be started and no frames cross a pipe.  JRuby comes in with the
+ * {@code jruby} build profile and is found through javax.script.
+ *
+ * The script runtime is shared by all parser threads, JRuby runs them
+ * truly in parallel.  Unlike a ruby process, a parse that hangs can't be
+ * killed, so there is no timeout.
+ */
+public class JRubyBackend implements ParserBackend {
+
+    private static final String DUMP_RUBY_RESOURCE = "org/yinwang/rubysonar/ruby/dump_ruby.rb";
+
+    @NotNull
+    private Invocable jsonizer;
+    private int parallelism;
+
+
+    public JRubyBackend() {
+        // one runtime for all threads, each with its own local variables
+        System.setProperty("org.jruby.embed.localcontext.scope", "concurrent");
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName("jruby");
+        if (engine == null) {
+            Utils.die("JRuby not found, build with -Pjruby or use --parser ruby");
+        }
+
+        try {
+            InputStream script = Thread.currentThread()
+                    .getContextClassLoader()
+                    .getResourceAsStream(DUMP_RUBY_RESOURCE);
+            engine.eval(Utils.readWholeStream(script));
+        } catch (Exception e) {
+            Utils.msg(e.getMessage());
+            Utils.die("Failed to load jsonizer into JRuby");
+        }
+        jsonizer = (Invocable) engine;
+
+        parallelism = Runtime.getRuntime().availableProcessors();
+        try {
+            parallelism = Integer.parseInt(Analyzer.self.getOption("workers", String.valueOf(parallelism)));
+        } catch (NumberFormatException e) {
+            Utils.die("--workers needs a number");
+        }
+    }
+
+
+    @NotNull
+    @Override
+    public String getName() {
+        return "jruby";
+    }
+
+
+    @Nullable
+    @Override
+    public Node parse(@NotNull String file) {
+        Node node = null;
+        try {
+            Object json = jsonizer.invokeFunction("encode_ast", file);
+            node = Parser.decodeFrame(file, json.toString().getBytes(Utils.UTF_8), false);
+        } catch (Exception e) {
+            Utils.msg("\nFailed to parse: " + file + ": " + e.getMessage());
+        }
+
+        if (node == null) {
+            Analyzer.self.failedToParse.add(file);
+        }
+        return node;
+    }
+
+
+    @Nullable
+    @Override
+    public Node parseSource(@NotNull String file, @NotNull String source) {
+        try {
+            Object json = jsonizer.invokeFunction("encode_ast", file, source);
+            return Parser.decodeFrame(file, json.toString().getBytes(Utils.UTF_8), false);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+
+    @NotNull
+    @Override
+    public List<Node> parseBatch(@NotNull List<String> files) {
+        List<Node> ret = new ArrayList<>(files.size());
+        for (String file : files) {
+            ret.add(parse(file));
+        }
+        return ret;
+    }
+
+
+    @Override
+    public int getParallelism() {
+        return Math.max(1, parallelism);
+    }
+
+
+    /**
+     * A call costs next to nothing here, there is nothing to batch.
+     */
+    @Override
+    public long getBatchBytes() {
+        return 0;
+    }
+
+
+    @Override
+    public void close() {
+        // the runtime goes with the JVM
+    }
+}
@@ -0,0 +1,294 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+
+/**
+ * Ruby files under the load path, by file name.  Each load path directory is
+ * walked once, in parallel, the first time a require looks into it (or into
+ * a directory below it), and is then kept current by a WatchService.  A
+ * require is resolved by a lookup of its last segment, candidates ordered by
+ * depth.
+ */
+public class LoadPathIndex {
+
+    private static final String SUFFIX = ".rb";
+
+    private static final Comparator<String> BY_DEPTH =
+            Comparator.comparingInt(LoadPathIndex::depth).thenComparing(Comparator.naturalOrder());
+
+    // "foo.rb" -> all indexed paths named foo.rb, shallowest first; lists are replaced, never modified
+    @NotNull
+    private Map<String, List<String>> byName = new ConcurrentHashMap<>();
+    @NotNull
+    private Set<String> roots = ConcurrentHashMap.newKeySet();
+
+    @Nullable
+    private WatchService watcher;
+    @NotNull
+    private Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    private volatile boolean watchFailed = false;
+
+
+    public LoadPathIndex() {
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            Thread t = new Thread(this::processEvents, "load-path-watcher");
+            t.setDaemon(true);
+            t.start();
+        } catch (IOException e) {
+            Utils.msg("Load path index won't notice new files: " + e.getMessage());
+            watcher = null;
+        }
+    }
+
+
+    /**
+     * The file {@code require headName} loads from {@code root}: a file named
+     * after the last segment of {@code headName} anywhere below {@code root}
+     * whose path ends in {@code headName}.
+     */
+    @Nullable
+    public String find(@NotNull String root, @NotNull String headName) {
+        ensureIndexed(root);
+
+        String name = headName.endsWith(SUFFIX) ? headName : headName + SUFFIX;
+        int slash = name.lastIndexOf('/');
+        List<String> candidates = byName.get(slash < 0 ? name : name.substring(slash + 1));
+        if (candidates == null) {
+            return null;
+        }
+
+        String prefix = root.endsWith(File.separator) ? root : root + File.separator;
+        String tail = File.separator + name.replace('/', File.separatorChar);
+        for (String c : candidates) {
+            if (c.startsWith(prefix) && (slash < 0 || c.endsWith(tail))) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+
+    private void ensureIndexed(@NotNull String root) {
+        // a directory below an indexed one is already covered
+        for (File f = new File(root); f != null; f = f.getParentFile()) {
+            if (roots.contains(f.getPath())) {
+                return;
+            }
+        }
+
+        synchronized (this) {
+            if (roots.contains(root)) {
+                return;
+            }
+            Path dir = Paths.get(root);
+            try {
+                ForkJoinPool.commonPool().invoke(newWalk(dir));
+            } catch (IOException e) {
+                // not a directory, nothing to index
+            }
+            roots.add(root);
+        }
+    }
+
+
+    @NotNull
+    private Walk newWalk(@NotNull Path dir) throws IOException {
+        Set<Object> visited = ConcurrentHashMap.newKeySet();
+        visited.add(dirKey(dir, Files.readAttributes(dir, BasicFileAttributes.class)));
+        return new Walk(dir, visited);
+    }
+
+
+    /**
+     * Indexes the files below {@code dir} under the paths they have there.
+     * The directories seen are kept per walk: one reached through a symlink
+     * is indexed again under the real path when that is a root of its own.
+     */
+    private class Walk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final Set<Object> visitedDirs;
+
+
+        Walk(Path dir, Set<Object> visitedDirs) {
+            this.dir = dir;
+            this.visitedDirs = visitedDirs;
+        }
+
+
+        @Override
+        protected void compute() {
+            List<Walk> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path p : entries) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        // symlinks may loop back
+                        if (visitedDirs.add(dirKey(p, attrs))) {
+                            subdirs.add(new Walk(p, visitedDirs));
+                        }
+                    } else if (p.toString().endsWith(SUFFIX)) {
+                        add(p.toString());
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                return;
+            }
+            watch(dir);
+            invokeAll(subdirs);
+        }
+    }
+
+
+    @NotNull
+    private static Object dirKey(@NotNull Path dir, @NotNull BasicFileAttributes attrs) throws IOException {
+        return attrs.fileKey() != null ? attrs.fileKey() : dir.toRealPath();
+    }
+
+
+    private static int depth(String path) {
+        int n = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == File.separatorChar) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+
+    private void add(@NotNull String path) {
+        byName.compute(new File(path).getName(), (k, old) -> {
+            List<String> ret = old == null ? new ArrayList<>(1) : new ArrayList<>(old);
+            int i = Collections.binarySearch(ret, path, BY_DEPTH);
+            if (i < 0) {
+                ret.add(-i - 1, path);
+            }
+            return ret;
+        });
+    }
+
+
+    private void remove(@NotNull String path) {
+        byName.computeIfPresent(new File(path).getName(), (k, old) -> {
+            List<String> ret = new ArrayList<>(old);
+            ret.remove(path);
+            return ret.isEmpty() ? null : ret;
+        });
+    }
+
+
+    private void removeTree(@NotNull String dir) {
+        String prefix = dir + File.separator;
+        for (String name : byName.keySet()) {
+            byName.computeIfPresent(name, (k, old) -> {
+                List<String> ret = new ArrayList<>(old);
+                ret.removeIf(p -> p.startsWith(prefix));
+                return ret.isEmpty() ? null : ret;
+            });
+        }
+    }
+
+
+    private void watch(@NotNull Path dir) {
+        if (watcher == null || watchFailed) {
+            return;
+        }
+        try {
+            watchedDirs.put(dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE), dir);
+        } catch (IOException e) {
+            // usually the inotify limit, keep the index but stop watching
+            watchFailed = true;
+            Utils.msg("Load path index stops watching new directories: " + e.getMessage());
+        }
+    }
+
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path dir = watchedDirs.get(key);
+            if (dir != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        continue;
+                    }
+                    Path p = dir.resolve((Path) event.context());
+                    if (event.kind() == ENTRY_CREATE) {
+                        if (Files.isDirectory(p)) {
+                            try {
+                                ForkJoinPool.commonPool().invoke(newWalk(p));
+                            } catch (IOException e) {
+                                // gone again
+                            }
+                        } else if (p.toString().endsWith(SUFFIX)) {
+                            add(p.toString());
+                        }
+                    } else if (event.kind() == ENTRY_DELETE) {
+                        if (p.toString().endsWith(SUFFIX)) {
+                            remove(p.toString());
+                        } else {
+                            removeTree(p.toString());
+                        }
+                    }
+                }
+            }
+
+            if (!key.reset()) {
+                watchedDirs.remove(key);
+            }
+        }
+    }
+
+
+    public void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
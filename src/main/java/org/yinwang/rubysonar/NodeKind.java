@@ -0,0 +1,91 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * The node types written by the jsonizer.  The binary wire format tags a
+ * node with its kind's ordinal, so the order here must match KINDS in
+ * dump_ruby.rb; add new kinds at the end of both.
+ */
+public enum NodeKind {
+    PROGRAM("program"),
+    MODULE("module"),
+    BLOCK("block"),
+    DEF("def"),
+    LAMBDA("lambda"),
+    CALL("call"),
+    ATTRIBUTE("attribute"),
+    BINARY("binary"),
+    VOID("void"),
+    BREAK("break"),
+    RETRY("retry"),
+    REDO("redo"),
+    CONTINUE("continue"),
+    CLASS("class"),
+    UNDEF("undef"),
+    HASH("hash"),
+    RESCUE("rescue"),
+    FOR("for"),
+    IF("if"),
+    KEYWORD("keyword"),
+    ARRAY("array"),
+    ARGS("args"),
+    DOT2("dot2"),
+    DOT3("dot3"),
+    STAR("star"),
+    ARG("arg"),
+    RETURN("return"),
+    STRING("string"),
+    STRING_EMBEXPR("string_embexpr"),
+    REGEXP("regexp"),
+    SUBSCRIPT("subscript"),
+    BEGIN("begin"),
+    UNARY("unary"),
+    WHILE("while"),
+    YIELD("yield"),
+    ASSIGN("assign"),
+    NAME("name"),
+    CVAR("cvar"),
+    IVAR("ivar"),
+    GVAR("gvar"),
+    SYMBOL("symbol"),
+    INT("int"),
+    FLOAT("float");
+
+    private static final NodeKind[] BY_TAG = values();
+    private static final Map<String, NodeKind> BY_NAME = new HashMap<>();
+
+    static {
+        for (NodeKind k : BY_TAG) {
+            BY_NAME.put(k.name, k);
+        }
+    }
+
+    private final String name;
+
+
+    NodeKind(String name) {
+        this.name = name;
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    @Nullable
+    public static NodeKind of(String name) {
+        return BY_NAME.get(name);
+    }
+
+
+    @Nullable
+    public static NodeKind of(int tag) {
+        return tag >= 0 && tag < BY_TAG.length ? BY_TAG[tag] : null;
+    }
+}
@@ -0,0 +1,196 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * Parses a list of files in the background and hands them to the analysis
+ * in the order of the list, each as soon as it is parsed, so resolving
+ * starts with the first file instead of after the last one.  The order
+ * doesn't depend on how fast the workers are, neither do the results.
+ *
+ * A file the analysis needs before its turn (through a require) is parsed
+ * right away by {@link #prioritize}, or waited for if it is already being
+ * parsed.  At most {@code maxBuffered} files are parsed ahead of the
+ * analysis; the background parsers stop until it catches up.
+ *
+ * Small files are sent to the workers in batches, up to
+ * {@link Parser#getBatchBytes} of source per request.
+ */
+public class ParsePipeline {
+
+    @NotNull
+    private final List<String> files;
+    @NotNull
+    private final Queue<String> pending;
+    @NotNull
+    private final Set<String> taken = ConcurrentHashMap.newKeySet();
+    // taken by the background parsers, each holding a permit until handed out
+    @NotNull
+    private final Set<String> ahead = ConcurrentHashMap.newKeySet();
+    @NotNull
+    private final Map<String, CompletableFuture<Void>> done = new ConcurrentHashMap<>();
+    @NotNull
+    private final Semaphore buffered;
+    // only moved by the analysis thread
+    private int nextIndex = 0;
+    @NotNull
+    private final List<Thread> parsers = new ArrayList<>();
+
+
+    public ParsePipeline(@NotNull List<String> files, int maxBuffered) {
+        this.files = files;
+        pending = new ConcurrentLinkedQueue<>(files);
+        for (String file : files) {
+            done.put(file, new CompletableFuture<>());
+        }
+        buffered = new Semaphore(Math.max(1, maxBuffered));
+
+        for (int i = 0; i < Parser.getWorkerCount(); i++) {
+            Thread t = new Thread(this::parseLoop, "parser-" + i);
+            t.setDaemon(true);
+            parsers.add(t);
+            t.start();
+        }
+    }
+
+
+    private void parseLoop() {
+        while (true) {
+            try {
+                buffered.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            String file = takeAhead();
+            if (file == null) {
+                buffered.release();
+                return;
+            }
+
+            // small files travel together, one permit each
+            List<String> batch = new ArrayList<>();
+            batch.add(file);
+            long bytes = new File(file).length();
+            long maxBytes = Parser.getBatchBytes();
+            while (batch.size() < Parser.getMaxBatchFiles()) {
+                String next = pending.peek();
+                if (next == null || bytes + new File(next).length() > maxBytes || !buffered.tryAcquire()) {
+                    break;
+                }
+                next = takeAhead();
+                if (next == null) {
+                    buffered.release();
+                    break;
+                }
+                batch.add(next);
+                bytes += new File(next).length();
+            }
+
+            try {
+                AstCache.get().loadASTs(batch, Parser::parseBatch);
+            } catch (Exception e) {
+                Utils.msg("\nFailed to parse " + batch + ": " + e);
+            } finally {
+                for (String f : batch) {
+                    done.get(f).complete(null);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The first file nobody has started yet, claimed for a background parser.
+     */
+    @Nullable
+    private String takeAhead() {
+        String file;
+        do {
+            file = pending.poll();
+        } while (file != null && !taken.add(file));
+        if (file != null) {
+            ahead.add(file);
+        }
+        return file;
+    }
+
+
+    /**
+     * The next file of the list, blocking until it is parsed.  Files parsed
+     * early by {@link #prioritize} are handed out too, in their place.
+     *
+     * @return {@code null} once every file has been handed out
+     */
+    @Nullable
+    public String next() {
+        if (nextIndex >= files.size()) {
+            return null;
+        }
+        String file = files.get(nextIndex++);
+        // the parsers take files in this order, so it is started or next up
+        done.get(file).join();
+        if (ahead.remove(file)) {
+            buffered.release();
+        }
+        return file;
+    }
+
+
+    /**
+     * Make sure {@code file} is parsed before returning: parse it on this
+     * thread if the background parsers haven't started it, otherwise wait
+     * for them.  Files outside the pipeline are left alone.
+     */
+    public void prioritize(@NotNull String file) {
+        CompletableFuture<Void> f = done.get(file);
+        if (f == null) {
+            return;
+        }
+
+        if (taken.add(file)) {
+            Analyzer.self.stats.inc("parse.priority");
+            try {
+                AstCache.get().getAST(file, Parser::parse);
+            } finally {
+                f.complete(null);
+            }
+        } else {
+            f.join();
+        }
+    }
+
+
+    /**
+     * Stops the background parsers.  The ruby workers stay up for later parses.
+     */
+    public void close() {
+        // let them finish the file at hand, a parse isn't safe to interrupt
+        pending.clear();
+        buffered.release(parsers.size());
+        for (Thread t : parsers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (CompletableFuture<Void> f : done.values()) {
+            f.complete(null);
+        }
+    }
+}
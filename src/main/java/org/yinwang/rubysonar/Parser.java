@@ -16,34 +16,25 @@ import java.io.OutputStreamWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 
 
-public class Parser implements Runnable {
+public class Parser {
 
-    private static final int TIMEOUT = 30000;
-    private static final int QUEUE_SIZE = Runtime.getRuntime().availableProcessors() + 5;
+    static final int TIMEOUT = 30000;
+    private static final int MAX_BATCH_FILES = 256;
+
+    @Nullable
+    private static ParserBackend backend;
 
     private static Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
     private String exchangeFile;
     private String endMark;
     private String jsonizer;
     private String parserLog;
     private String file;
-    private RubySubProcess process;
-
-    private static ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 5);
-    private static BlockingQueue<RubySubProcess> rubySubProcessQueue = new LinkedBlockingQueue<>(QUEUE_SIZE);
-
-    static {
-        for (int i = 0; i < QUEUE_SIZE; i++) {
-            rubySubProcessQueue.offer(RubySubProcess.newInstance());
-        }
-    }
+    private AstDecoder decoder = new AstDecoder(this);
+    private BinaryAstDecoder binaryDecoder = new BinaryAstDecoder(this);
 
 
     public Parser() {
@@ -64,39 +55,105 @@ public class Parser implements Runnable {
         //exchangeFile = Utils.locateTmp("json", file);
     }
 
-    @Override
-    public void run() {
-        RubySubProcess rubyP;
-        try {
-            rubyP = rubySubProcessQueue.take();
-        } catch (InterruptedException e) {
-            Utils.testmsg(e.getMessage());
-            return;
+    /**
+     * The backend chosen with {@code --parser}, "ruby" (default) or "jruby".
+     */
+    @NotNull
+    static synchronized ParserBackend getBackend() {
+        if (backend == null) {
+            String name = Analyzer.self.getOption("parser", "ruby");
+            if (name.equals("ruby")) {
+                backend = new RubyProcessBackend();
+            } else if (name.equals("jruby")) {
+                backend = new JRubyBackend();
+            } else {
+                Utils.die("Unknown --parser: " + name + ", use ruby or jruby");
+            }
         }
-        // File f = rubyFiles.get();
-        Node node = parseFile(file, rubyP);
-        if (node != null) {
-            AstCache.get().put(file, node);
+        return backend;
+    }
+
+
+    static synchronized void closeBackend() {
+        if (backend != null) {
+            backend.close();
+            backend = null;
         }
-        rubySubProcessQueue.add(rubyP);
     }
 
-    public static void prepareParse(List<File> files) {
-        for (File file : files) {
-            Parser p = new Parser(file);
-            executor.execute(p);
+
+    /**
+     * Parse one file with the backend, waiting for it to have room.
+     */
+    @Nullable
+    static Node parse(String file) {
+        long start = System.nanoTime();
+        try {
+            return getBackend().parse(file);
+        } finally {
+            Analyzer.self.stats.inc("parse.nanos", System.nanoTime() - start);
         }
+    }
+
 
-        executor.shutdown();
+    /**
+     * Parse {@code source} as the content of {@code file}, e.g. an editor
+     * buffer that hasn't been saved.  The file itself isn't read.
+     */
+    @Nullable
+    static Node parseSource(@NotNull String file, @NotNull String source) {
+        long start = System.nanoTime();
         try {
-            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-            Parser.destroyRubySubProcessQueue();
-        } catch (InterruptedException e) {
-            Utils.testmsg(e.getMessage());
+            return getBackend().parseSource(file, source);
+        } finally {
+            Analyzer.self.stats.inc("parse.nanos", System.nanoTime() - start);
         }
     }
 
 
+    /**
+     * Parse several files at once, see {@link ParserBackend#parseBatch}.
+     */
+    @NotNull
+    static List<Node> parseBatch(@NotNull List<String> files) {
+        long start = System.nanoTime();
+        try {
+            return getBackend().parseBatch(files);
+        } finally {
+            Analyzer.self.stats.inc("parse.batches");
+            Analyzer.self.stats.inc("parse.batched", files.size());
+            Analyzer.self.stats.inc("parse.nanos", System.nanoTime() - start);
+        }
+    }
+
+
+    static long getBatchBytes() {
+        return getBackend().getBatchBytes();
+    }
+
+
+    static int getMaxBatchFiles() {
+        return MAX_BATCH_FILES;
+    }
+
+
+    /**
+     * How many files can be parsed at the same time.
+     */
+    static int getWorkerCount() {
+        return getBackend().getParallelism();
+    }
+
+
+    /**
+     * Decode a frame of the jsonizer for {@code file}.
+     */
+    @Nullable
+    static Node decodeFrame(@NotNull String file, @NotNull byte[] frame, boolean binary) {
+        return new Parser(new File(file)).decode(file, frame, binary);
+    }
+
+
     /**
      * start or restart ruby process
      */
@@ -126,6 +183,11 @@ public class Parser implements Runnable {
 
     @Nullable
     public Node convert(Object o) {
+        if (o instanceof Node) {
+            // already built by the streaming decoder
+            return (Node) o;
+        }
+
         if (!(o instanceof Map) || ((Map) o).isEmpty()) {
             return null;
         }
@@ -133,377 +195,396 @@ public class Parser implements Runnable {
         Map<String, Object> map = (Map<String, Object>) o;
 
         String type = (String) map.get("type");
-        Double startDouble = (Double) map.get("start");
-        Double endDouble = (Double) map.get("end");
-        Double lineDouble = (Double) map.get("start_line");
-        Double colDouble = (Double) map.get("end_line");
-
-        int start = startDouble == null ? 0 : startDouble.intValue();
-        int end = endDouble == null ? 1 : endDouble.intValue();
-        int line = lineDouble == null ? 0 : lineDouble.intValue();
-        int col = colDouble == null ? 0 : colDouble.intValue()+1;
-
-
-        if (type.equals("program")) {
-            return convert(map.get("body"));
+        Number startNum = (Number) map.get("start");
+        Number endNum = (Number) map.get("end");
+        Number lineNum = (Number) map.get("start_line");
+        Number colNum = (Number) map.get("end_line");
+
+        int start = startNum == null ? 0 : startNum.intValue();
+        int end = endNum == null ? 1 : endNum.intValue();
+        int line = lineNum == null ? 0 : lineNum.intValue();
+        int col = colNum == null ? 0 : colNum.intValue()+1;
+
+        NodeKind kind = NodeKind.of(type);
+        if (kind == null) {
+            Utils.die("[please report parser bug]: unexpected ast node: " + type);
+            return null;
         }
+        return convert(kind, map, start, end, line, col);
+    }
 
-        if (type.equals("module")) {
-            Node name = convert(map.get("name"));
-            Block body = (Block) convert(map.get("body"));
 
-            if (name instanceof Name) {
-                String id = ((Name) name).id;
-                if (id.startsWith("InstanceMethods")) {
-                    return body;
-                }
+    /**
+     * Build the node of {@code kind} from its fields. Child values may be
+     * raw maps (Gson) or nodes that were already converted (the decoders).
+     */
+    @Nullable
+    Node convert(NodeKind kind, Map<String, Object> map, int start, int end, int line, int col) {
+        switch (kind) {
+            case PROGRAM: {
+                return convert(map.get("body"));
             }
-            Str docstring = (Str) convert(map.get("doc"));
-            return new Moduler(name, body, docstring, file, start,end, line, col);
-        }
-
-        if (type.equals("block")) {
-            List<Node> stmts = convertList(map.get("stmts"));
-            return new Block(stmts, file, start,end, line, col);
-        }
-
-        if (type.equals("def") || type.equals("lambda")) {
-            Node binder = convert(map.get("name"));
-            Node body = convert(map.get("body"));
-            Map<String, Object> argsMap = (Map<String, Object>) map.get("params");
-            List<Node> positional = convertList(argsMap.get("positional"));
-            List<Node> defaults = convertList(argsMap.get("defaults"));
-            Name var = (Name) convert(argsMap.get("rest"));
-            Name vararg = var == null ? null : var;
-            Name kw = (Name) convert(argsMap.get("rest_kw"));
-            Name kwarg = kw == null ? null : kw;
-            List<Node> afterRest = convertList(argsMap.get("after_rest"));
-            Name blockarg = (Name) convert(argsMap.get("blockarg"));
-            Str docstring = (Str) convert(map.get("doc"));
-            return new Function(binder, positional, body, defaults, vararg, kwarg, afterRest, blockarg,
-                    docstring, file, start,end, line, col);
-        }
-
-        if (type.equals("call")) {
-            Node func = convert(map.get("func"));
-            Map<String, Object> args = (Map<String, Object>) map.get("args");
-            Node blockarg = null;
-            Node stararg = null;
-
-            if (args != null) {
-                List<Node> posKey = convertList(args.get("positional"));
-                List<Node> pos = new ArrayList<>();
-                List<Keyword> kws = new ArrayList<>();
-                if (posKey != null) {
-                    for (Node node : posKey) {
-                        if (node instanceof Assign && ((Assign) node).target instanceof Name) {
-                            kws.add(new Keyword(((Name) ((Assign) node).target).id,
-                                    ((Assign) node).value,
-                                    file,
-                                    node.start,
-                                    node.end, 
-                                    node.line,
-                                    node.col ));
-                        } else {
-                            pos.add(node);
-                        }
+
+            case MODULE: {
+                Node name = convert(map.get("name"));
+                Block body = (Block) convert(map.get("body"));
+
+                if (name instanceof Name) {
+                    String id = ((Name) name).id;
+                    if (id.startsWith("InstanceMethods")) {
+                        return body;
                     }
                 }
-                stararg = convert(args.get("star"));
-                blockarg = convert(args.get("blockarg"));
-                return new Call(func, pos, kws, null, stararg, blockarg, file, start,end, line, col);
-            } else {
-                // call with no arguments
-                return new Call(func, null, null, null, stararg, blockarg, file, start,end, line, col);
+                Str docstring = (Str) convert(map.get("doc"));
+                return new Moduler(name, body, docstring, file, start,end, line, col);
             }
-        }
-
-        if (type.equals("attribute")) {
-            Node value = convert(map.get("value"));
-            Name attr = (Name) convert(map.get("attr"));
-            return new Attribute(value, attr, file, start,end, line, col);
-        }
-
-        if (type.equals("binary")) {
-            Node left = convert(map.get("left"));
-            Node right = convert(map.get("right"));
-            Op op = convertOp(map.get("op"));
 
-            // desugar complex operators
-            if (op == Op.NotEqual) {
-                Node eq = new BinOp(Op.Equal, left, right, file, start,end, line, col);
-                return new UnaryOp(Op.Not, eq, file, start,end, line, col);
+            case BLOCK: {
+                List<Node> stmts = convertList(map.get("stmts"));
+                return new Block(stmts, file, start,end, line, col);
             }
 
-            if (op == Op.NotMatch) {
-                Node eq = new BinOp(Op.Match, left, right, file, start,end, line, col);
-                return new UnaryOp(Op.Not, eq, file, start,end, line, col);
+            case DEF:
+            case LAMBDA: {
+                Node binder = convert(map.get("name"));
+                Node body = convert(map.get("body"));
+                Map<String, Object> argsMap = (Map<String, Object>) map.get("params");
+                List<Node> positional = convertList(argsMap.get("positional"));
+                List<Node> defaults = convertList(argsMap.get("defaults"));
+                Name var = (Name) convert(argsMap.get("rest"));
+                Name vararg = var == null ? null : var;
+                Name kw = (Name) convert(argsMap.get("rest_kw"));
+                Name kwarg = kw == null ? null : kw;
+                List<Node> afterRest = convertList(argsMap.get("after_rest"));
+                Name blockarg = (Name) convert(argsMap.get("blockarg"));
+                Str docstring = (Str) convert(map.get("doc"));
+                return new Function(binder, positional, body, defaults, vararg, kwarg, afterRest, blockarg,
+                        docstring, file, start,end, line, col);
             }
 
-            if (op == Op.LtE) {
-                Node lt = new BinOp(Op.Lt, left, right, file, start,end, line, col);
-                Node eq = new BinOp(Op.Eq, left, right, file, start,end, line, col);
-                return new BinOp(Op.Or, lt, eq, file, start,end, line, col);
+            case CALL: {
+                Node func = convert(map.get("func"));
+                Map<String, Object> args = (Map<String, Object>) map.get("args");
+                Node blockarg = null;
+                Node stararg = null;
+
+                if (args != null) {
+                    List<Node> posKey = convertList(args.get("positional"));
+                    List<Node> pos = new ArrayList<>();
+                    List<Keyword> kws = new ArrayList<>();
+                    if (posKey != null) {
+                        for (Node node : posKey) {
+                            if (node instanceof Assign && ((Assign) node).target instanceof Name) {
+                                kws.add(new Keyword(((Name) ((Assign) node).target).id,
+                                        ((Assign) node).value,
+                                        file,
+                                        node.start,
+                                        node.end, 
+                                        node.line,
+                                        node.col ));
+                            } else {
+                                pos.add(node);
+                            }
+                        }
+                    }
+                    stararg = convert(args.get("star"));
+                    blockarg = convert(args.get("blockarg"));
+                    return new Call(func, pos, kws, null, stararg, blockarg, file, start,end, line, col);
+                } else {
+                    // call with no arguments
+                    return new Call(func, null, null, null, stararg, blockarg, file, start,end, line, col);
+                }
             }
 
-            if (op == Op.GtE) {
-                Node gt = new BinOp(Op.Gt, left, right, file, start,end, line, col);
-                Node eq = new BinOp(Op.Eq, left, right, file, start,end, line, col);
-                return new BinOp(Op.Or, gt, eq, file, start,end, line, col);
+            case ATTRIBUTE: {
+                Node value = convert(map.get("value"));
+                Name attr = (Name) convert(map.get("attr"));
+                return new Attribute(value, attr, file, start,end, line, col);
             }
 
-            if (op == Op.NotIn) {
-                Node in = new BinOp(Op.In, left, right, file, start,end, line, col);
-                return new UnaryOp(Op.Not, in, file, start,end, line, col);
-            }
+            case BINARY: {
+                Node left = convert(map.get("left"));
+                Node right = convert(map.get("right"));
+                Op op = convertOp(map.get("op"));
 
-            if (op == Op.NotEq) {
-                Node in = new BinOp(Op.Eq, left, right, file, start,end, line, col);
-                return new UnaryOp(Op.Not, in, file, start,end, line, col);
-            }
+                // desugar complex operators
+                if (op == Op.NotEqual) {
+                    Node eq = new BinOp(Op.Equal, left, right, file, start,end, line, col);
+                    return new UnaryOp(Op.Not, eq, file, start,end, line, col);
+                }
 
-            return new BinOp(op, left, right, file, start,end, line, col);
+                if (op == Op.NotMatch) {
+                    Node eq = new BinOp(Op.Match, left, right, file, start,end, line, col);
+                    return new UnaryOp(Op.Not, eq, file, start,end, line, col);
+                }
 
-        }
+                if (op == Op.LtE) {
+                    Node lt = new BinOp(Op.Lt, left, right, file, start,end, line, col);
+                    Node eq = new BinOp(Op.Eq, left, right, file, start,end, line, col);
+                    return new BinOp(Op.Or, lt, eq, file, start,end, line, col);
+                }
 
-        if (type.equals("void")) {
-            return new Void(file, start,end, line, col);
-        }
+                if (op == Op.GtE) {
+                    Node gt = new BinOp(Op.Gt, left, right, file, start,end, line, col);
+                    Node eq = new BinOp(Op.Eq, left, right, file, start,end, line, col);
+                    return new BinOp(Op.Or, gt, eq, file, start,end, line, col);
+                }
 
+                if (op == Op.NotIn) {
+                    Node in = new BinOp(Op.In, left, right, file, start,end, line, col);
+                    return new UnaryOp(Op.Not, in, file, start,end, line, col);
+                }
 
-        if (type.equals("break")) {
-            return new Control("break", file, start,end, line, col);
-        }
+                if (op == Op.NotEq) {
+                    Node in = new BinOp(Op.Eq, left, right, file, start,end, line, col);
+                    return new UnaryOp(Op.Not, in, file, start,end, line, col);
+                }
 
-        if (type.equals("retry")) {
-            return new Control("retry", file, start,end, line, col);
-        }
+                return new BinOp(op, left, right, file, start,end, line, col);
 
-        if (type.equals("redo")) {
-            return new Control("redo", file, start,end, line, col);
-        }
+            }
 
-        if (type.equals("continue")) {
-            return new Control("continue", file, start,end, line, col);
-        }
+            case VOID: {
+                return new Void(file, start,end, line, col);
+            }
 
-        if (type.equals("class")) {
-            Node locator = convert(map.get("name"));
-            Node base = convert(map.get("super"));
-            Node body = convert(map.get("body"));
-            Str docstring = (Str) convert(map.get("doc"));
-            boolean isStatic = (Boolean) map.get("static");
-            return new Class(locator, base, body, docstring, isStatic, file, start, end, line, col);
-        }
 
-        if (type.equals("undef")) {
-            List<Node> targets = convertList(map.get("names"));
-            return new Undef(targets, file, start, end, line, col);
-        }
+            case BREAK: {
+                return new Control("break", file, start,end, line, col);
+            }
+
+            case RETRY: {
+                return new Control("retry", file, start,end, line, col);
+            }
+
+            case REDO: {
+                return new Control("redo", file, start,end, line, col);
+            }
+
+            case CONTINUE: {
+                return new Control("continue", file, start,end, line, col);
+            }
 
-        if (type.equals("hash")) {
-            List<Map<String, Object>> entries = (List<Map<String, Object>>) map.get("entries");
-            List<Node> keys = new ArrayList<>();
-            List<Node> values = new ArrayList<>();
+            case CLASS: {
+                Node locator = convert(map.get("name"));
+                Node base = convert(map.get("super"));
+                Node body = convert(map.get("body"));
+                Str docstring = (Str) convert(map.get("doc"));
+                boolean isStatic = (Boolean) map.get("static");
+                return new Class(locator, base, body, docstring, isStatic, file, start, end, line, col);
+            }
+
+            case UNDEF: {
+                List<Node> targets = convertList(map.get("names"));
+                return new Undef(targets, file, start, end, line, col);
+            }
 
-            if (entries != null) {
-                for (Map<String, Object> e : entries) {
-                    Node k = convert(e.get("key"));
-                    Node v = convert(e.get("value"));
-                    if (k != null && v != null) {
-                        keys.add(k);
-                        values.add(v);
+            case HASH: {
+                List<Map<String, Object>> entries = (List<Map<String, Object>>) map.get("entries");
+                List<Node> keys = new ArrayList<>();
+                List<Node> values = new ArrayList<>();
+
+                if (entries != null) {
+                    for (Map<String, Object> e : entries) {
+                        Node k = convert(e.get("key"));
+                        Node v = convert(e.get("value"));
+                        if (k != null && v != null) {
+                            keys.add(k);
+                            values.add(v);
+                        }
                     }
                 }
+                return new Dict(keys, values, file, start, end, line, col);
             }
-            return new Dict(keys, values, file, start, end, line, col);
-        }
-
-        if (type.equals("rescue")) {
-            List<Node> exceptions = convertList(map.get("exceptions"));
-            Node binder = convert(map.get("binder"));
-            Node handler = convert(map.get("handler"));
-            Node orelse = convert(map.get("else"));
-            return new Handler(exceptions, binder, handler, orelse, file, start,end, line, col);
-        }
 
-        if (type.equals("for")) {
-            Node target = convert(map.get("target"));
-            Node iter = convert(map.get("iter"));
-            Block body = (Block) convert(map.get("body"));
-            return new For(target, iter, body, null, file, start,end, line, col);
-        }
+            case RESCUE: {
+                List<Node> exceptions = convertList(map.get("exceptions"));
+                Node binder = convert(map.get("binder"));
+                Node handler = convert(map.get("handler"));
+                Node orelse = convert(map.get("else"));
+                return new Handler(exceptions, binder, handler, orelse, file, start,end, line, col);
+            }
 
-        if (type.equals("if")) {
-            Node test = convert(map.get("test"));
-            Node body = convert(map.get("body"));
-            Node orelse = convert(map.get("else"));
-            return new If(test, body, orelse, file, start,end, line, col);
-        }
+            case FOR: {
+                Node target = convert(map.get("target"));
+                Node iter = convert(map.get("iter"));
+                Block body = (Block) convert(map.get("body"));
+                return new For(target, iter, body, null, file, start,end, line, col);
+            }
 
-        if (type.equals("keyword")) {
-            String arg = (String) map.get("arg");
-            Node value = convert(map.get("value"));
-            return new Keyword(arg, value, file, start,end, line, col);
-        }
+            case IF: {
+                Node test = convert(map.get("test"));
+                Node body = convert(map.get("body"));
+                Node orelse = convert(map.get("else"));
+                return new If(test, body, orelse, file, start,end, line, col);
+            }
 
-        if (type.equals("array")) {
-            List<Node> elts = convertList(map.get("elts"));
-            if (elts == null) {
-                elts = Collections.emptyList();
+            case KEYWORD: {
+                String arg = (String) map.get("arg");
+                Node value = convert(map.get("value"));
+                return new Keyword(arg, value, file, start,end, line, col);
             }
-            return new Array(elts, file, start,end, line, col);
-        }
 
-        if (type.equals("args")) {
-            List<Node> elts = convertList(map.get("positional"));
-            if (elts != null) {
+            case ARRAY: {
+                List<Node> elts = convertList(map.get("elts"));
+                if (elts == null) {
+                    elts = Collections.emptyList();
+                }
                 return new Array(elts, file, start,end, line, col);
-            } else {
-                elts = convertList(map.get("star"));
+            }
+
+            case ARGS: {
+                List<Node> elts = convertList(map.get("positional"));
                 if (elts != null) {
                     return new Array(elts, file, start,end, line, col);
                 } else {
-                    return new Array(Collections.<Node>emptyList(), file, start,end, line, col);
+                    elts = convertList(map.get("star"));
+                    if (elts != null) {
+                        return new Array(elts, file, start,end, line, col);
+                    } else {
+                        return new Array(Collections.<Node>emptyList(), file, start,end, line, col);
+                    }
                 }
             }
-        }
-
-        if (type.equals("dot2") || type.equals("dot3")) {
-            Node from = convert(map.get("from"));
-            Node to = convert(map.get("to"));
-            List<Node> elts = new ArrayList<>();
-            elts.add(from);
-            elts.add(to);
-            return new Array(elts, file, start,end, line, col);
-        }
 
-        if (type.equals("star")) { // f(*[1, 2, 3, 4])
-            Node value = convert(map.get("value"));
-            return new Starred(value, file, start,end, line, col);
-        }
+            case DOT2:
+            case DOT3: {
+                Node from = convert(map.get("from"));
+                Node to = convert(map.get("to"));
+                List<Node> elts = new ArrayList<>();
+                elts.add(from);
+                elts.add(to);
+                return new Array(elts, file, start,end, line, col);
+            }
 
-        // another name for Name in Python3 func parameters?
-        if (type.equals("arg")) {
-            String id = (String) map.get("arg");
-            return new Name(id, file, start,end, line, col);
-        }
+            case STAR: { // f(*[1, 2, 3, 4])
+                Node value = convert(map.get("value"));
+                return new Starred(value, file, start,end, line, col);
+            }
 
-        if (type.equals("return")) {
-            Node value = convert(map.get("value"));
-            return new Return(value, file, start,end, line, col);
-        }
+            // another name for Name in Python3 func parameters?
+            case ARG: {
+                String id = (String) map.get("arg");
+                return new Name(id, file, start,end, line, col);
+            }
 
-        if (type.equals("string")) {
-            String s = (String) map.get("id");
-            return new Str(s, file, start,end, line, col);
-        }
+            case RETURN: {
+                Node value = convert(map.get("value"));
+                return new Return(value, file, start,end, line, col);
+            }
 
-        if (type.equals("string_embexpr")) {
-            Node value = convert(map.get("value"));
-            return new StrEmbed(value, file, start,end, line, col);
-        }
+            case STRING: {
+                String s = (String) map.get("id");
+                return new Str(s, file, start,end, line, col);
+            }
 
-        if (type.equals("regexp")) {
-            Node pattern = convert(map.get("pattern"));
-            Node regexp_end = convert(map.get("regexp_end"));
-            return new Regexp(pattern, regexp_end, file, start,end, line, col);
-        }
+            case STRING_EMBEXPR: {
+                Node value = convert(map.get("value"));
+                return new StrEmbed(value, file, start,end, line, col);
+            }
 
-        // Ruby's subscript is Python's Slice with step size 1
-        if (type.equals("subscript")) {
-            Node value = convert(map.get("value"));
-            Object sliceObj = map.get("slice");
+            case REGEXP: {
+                Node pattern = convert(map.get("pattern"));
+                Node regexp_end = convert(map.get("regexp_end"));
+                return new Regexp(pattern, regexp_end, file, start,end, line, col);
+            }
 
-            if (sliceObj instanceof List) {
-                List<Node> s = convertList(sliceObj);
-                if (s.size() == 1) {
-                    Node node = s.get(0);
-                    Index idx = new Index(node, file, node.start, node.end, node.line, node.col );
-                    return new Subscript(value, idx, file, start,end, line, col);
-                } else if (s.size() == 2) {
-                    Slice slice = new Slice(s.get(0), null, s.get(1), file, s.get(0).start, s.get(1).end, s.get(0).line, s.get(0).col);
-                    return new Subscript(value, slice, file, start,end, line, col);
+            // Ruby's subscript is Python's Slice with step size 1
+            case SUBSCRIPT: {
+                Node value = convert(map.get("value"));
+                Object sliceObj = map.get("slice");
+
+                if (sliceObj instanceof List) {
+                    List<Node> s = convertList(sliceObj);
+                    if (s.size() == 1) {
+                        Node node = s.get(0);
+                        Index idx = new Index(node, file, node.start, node.end, node.line, node.col );
+                        return new Subscript(value, idx, file, start,end, line, col);
+                    } else if (s.size() == 2) {
+                        Slice slice = new Slice(s.get(0), null, s.get(1), file, s.get(0).start, s.get(1).end, s.get(0).line, s.get(0).col);
+                        return new Subscript(value, slice, file, start,end, line, col);
+                    } else {
+                        // failed to parse the subscript part
+                        // cheat by returning the value
+                        return value;
+                    }
+                } else if (sliceObj == null) {
+                    return new Subscript(value, null, file, start,end, line, col);
                 } else {
-                    // failed to parse the subscript part
-                    // cheat by returning the value
-                    return value;
+                    Node sliceNode = convert(sliceObj);
+                    return new Subscript(value, sliceNode, file, start,end, line, col);
                 }
-            } else if (sliceObj == null) {
-                return new Subscript(value, null, file, start,end, line, col);
-            } else {
-                Node sliceNode = convert(sliceObj);
-                return new Subscript(value, sliceNode, file, start,end, line, col);
             }
-        }
 
-        if (type.equals("begin")) {
-            Node body = convert(map.get("body"));
-            Node rescue = convert(map.get("rescue"));
-            Node orelse = convert(map.get("else"));
-            Node finalbody = convert(map.get("ensure"));
-            return new Try(rescue, body, orelse, finalbody, file, start,end, line, col);
-        }
+            case BEGIN: {
+                Node body = convert(map.get("body"));
+                Node rescue = convert(map.get("rescue"));
+                Node orelse = convert(map.get("else"));
+                Node finalbody = convert(map.get("ensure"));
+                return new Try(rescue, body, orelse, finalbody, file, start,end, line, col);
+            }
 
-        if (type.equals("unary")) {
-            Op op = convertOp(map.get("op"));
-            Node operand = convert(map.get("operand"));
-            return new UnaryOp(op, operand, file, start,end, line, col);
-        }
+            case UNARY: {
+                Op op = convertOp(map.get("op"));
+                Node operand = convert(map.get("operand"));
+                return new UnaryOp(op, operand, file, start,end, line, col);
+            }
 
-        if (type.equals("while")) {
-            Node test = convert(map.get("test"));
-            Node body = convert(map.get("body"));
-            return new While(test, body, null, file, start,end, line, col);
-        }
+            case WHILE: {
+                Node test = convert(map.get("test"));
+                Node body = convert(map.get("body"));
+                return new While(test, body, null, file, start,end, line, col);
+            }
 
-        if (type.equals("yield")) {
-            Node value = convert(map.get("value"));
-            return new Yield(value, file, start,end, line, col);
-        }
+            case YIELD: {
+                Node value = convert(map.get("value"));
+                return new Yield(value, file, start,end, line, col);
+            }
 
-        if (type.equals("assign")) {
-            Node target = convert(map.get("target"));
-            Node value = convert(map.get("value"));
-            return new Assign(target, value, file, start,end, line, col);
-        }
+            case ASSIGN: {
+                Node target = convert(map.get("target"));
+                Node value = convert(map.get("value"));
+                return new Assign(target, value, file, start,end, line, col);
+            }
 
-        if (type.equals("name")) {
-            String id = (String) map.get("id");
-            return new Name(id, file, start,end, line, col);
-        }
+            case NAME: {
+                String id = (String) map.get("id");
+                return new Name(id, file, start,end, line, col);
+            }
 
-        if (type.equals("cvar")) {
-            String id = (String) map.get("id");
-            return new Name(id, NameType.CLASS, file, start,end, line, col);
-        }
+            case CVAR: {
+                String id = (String) map.get("id");
+                return new Name(id, NameType.CLASS, file, start,end, line, col);
+            }
 
-        if (type.equals("ivar")) {
-            String id = (String) map.get("id");
-            return new Name(id, NameType.INSTANCE, file, start,end, line, col);
-        }
+            case IVAR: {
+                String id = (String) map.get("id");
+                return new Name(id, NameType.INSTANCE, file, start,end, line, col);
+            }
 
-        if (type.equals("gvar")) {
-            String id = (String) map.get("id");
-            return new Name(id, NameType.GLOBAL, file, start,end, line, col);
-        }
+            case GVAR: {
+                String id = (String) map.get("id");
+                return new Name(id, NameType.GLOBAL, file, start,end, line, col);
+            }
 
-        if (type.equals("symbol")) {
-            String id = (String) map.get("id");
-            return new Symbol(id, file, start,end, line, col);
-        }
+            case SYMBOL: {
+                String id = (String) map.get("id");
+                return new Symbol(id, file, start,end, line, col);
+            }
 
-        if (type.equals("int")) {
-            String n = (String) map.get("value");
-            return new RbInt(n, file, start,end, line, col);
-        }
+            case INT: {
+                String n = (String) map.get("value");
+                return new RbInt(n, file, start,end, line, col);
+            }
+
+            case FLOAT: {
+                String n = (String) map.get("value");
+                return new RbFloat(n, file, start,end, line, col);
+            }
 
-        if (type.equals("float")) {
-            String n = (String) map.get("value");
-            return new RbFloat(n, file, start,end, line, col);
         }
 
-        Utils.die("[please report parser bug]: unexpected ast node: " + type);
+        Utils.die("[please report parser bug]: unexpected ast node: " + kind);
         return null;
     }
 
@@ -513,16 +594,16 @@ public class Parser implements Runnable {
         if (o == null) {
             return null;
         } else {
-            List<Map<String, Object>> in = (List<Map<String, Object>>) o;
+            List<Object> in = (List<Object>) o;
             List<T> out = new ArrayList<>();
 
-            for (Object x : (List) in) {
-                if (!(x instanceof Map)) {
+            for (Object x : in) {
+                if (x != null && !(x instanceof Map) && !(x instanceof Node)) {
                     Utils.die("not a map: " + x);
                 }
             }
 
-            for (Map<String, Object> m : in) {
+            for (Object m : in) {
                 Node n = convert(m);
                 if (n != null) {
                     out.add((T) n);
@@ -654,7 +735,7 @@ public class Parser implements Runnable {
     @Nullable
     public Node parseFile(String filename, RubySubProcess rubySubProcess) {
         file = filename;
-        Node node = parseFileInner(filename, rubySubProcess);
+        Node node = parseFileInner(filename, null, rubySubProcess);
         if (node != null) {
             return node;
         } else {
@@ -663,24 +744,45 @@ public class Parser implements Runnable {
         }
     }
 
+    @Nullable
     public Node parseFile(String filename) {
-        if (process == null) {
-            process = RubySubProcess.newInstance();
-        }
-        return parseFile(filename, process);
+        file = filename;
+        return parse(filename);
+    }
+
+
+    /**
+     * Like {@link #parseFile(String, RubySubProcess)}, with {@code source}
+     * as the file's content.  The source goes along with the command, so
+     * no temp file is written for it.  A failure isn't recorded, unsaved
+     * content is often incomplete.
+     */
+    @Nullable
+    public Node parseSource(String filename, @NotNull String source, @NotNull RubySubProcess rubySubProcess) {
+        file = filename;
+        return parseFileInner(filename, source, rubySubProcess);
     }
 
 
     @Nullable
-    private Node parseFileInner(String filename, @NotNull RubySubProcess rubySubProcess) {
+    private Node parseFileInner(String filename, @Nullable String source, @NotNull RubySubProcess rubySubProcess) {
+        // base64 keeps the content on the command line
+        String data = source == null ? null : Base64.getEncoder().encodeToString(source.getBytes(Utils.UTF_8));
+        if (rubySubProcess.isStreaming()) {
+            return parseFileStreaming(filename, data, rubySubProcess);
+        }
+
         cleanTemp();
 
         String s1 = Utils.escapeWindowsPath(filename);
         String s2 = Utils.escapeWindowsPath(exchangeFile);
         String s3 = Utils.escapeWindowsPath(endMark);
-        String dumpCommand = "parse_dump('" + s1 + "', '" + s2 + "', '" + s3 + "')";
+        String dumpCommand = data == null
+                ? "parse_dump('" + s1 + "', '" + s2 + "', '" + s3 + "')"
+                : "parse_dump('" + s1 + "', '" + s2 + "', '" + s3 + "', '" + data + "'.unpack('m0')[0])";
 
         if (!rubySubProcess.sendCommand(dumpCommand)) {
+            rubySubProcess.tryDestroyProcess();
             cleanTemp();
             return null;
         }
@@ -692,6 +794,8 @@ public class Parser implements Runnable {
         while (!marker.exists() || !ex.exists()) {
             if (System.currentTimeMillis() - waitStart > TIMEOUT) {
                 Utils.msg("\nTimed out while parsing: " + filename);
+                // still busy with this file, unusable for the next one
+                rubySubProcess.tryDestroyProcess();
                 cleanTemp();
                 return null;
             }
@@ -705,9 +809,9 @@ public class Parser implements Runnable {
             }
         }
 
-        String json;
+        byte[] json;
         try {
-            json = Utils.readFile(exchangeFile);
+            json = Utils.getBytesFromFile(exchangeFile);
         } catch (Exception e) {
             cleanTemp();
             Utils.die(e.getMessage());
@@ -715,26 +819,56 @@ public class Parser implements Runnable {
         }
 
         cleanTemp();
-
-        Map<String, Object> map = gson.fromJson(json, Map.class);
-        return convert(map);
+        return decode(filename, json, false);
     }
 
 
 
 
 
-    private void cleanTemp() {
-        new File(exchangeFile).delete();
-        new File(endMark).delete();
+    /**
+     * Ask a streaming process for the AST and read it back from its
+     * stdout, without going through the exchange files.
+     */
+    @Nullable
+    private Node parseFileStreaming(String filename, @Nullable String data, @NotNull RubySubProcess rubySubProcess) {
+        String cmd = data == null ? "parse " + filename : "source " + data + " " + filename;
+        if (!rubySubProcess.sendCommand(cmd)) {
+            return null;
+        }
+
+        byte[] frame = rubySubProcess.readFrame(TIMEOUT);
+        if (frame == null) {
+            if (rubySubProcess.hasTimedOut()) {
+                Utils.msg("\nTimed out while parsing: " + filename);
+            } else {
+                Utils.msg("\nRuby process died while parsing: " + filename);
+            }
+            return null;
+        } else if (frame.length == 0) {
+            return null;
+        }
+
+        return decode(filename, frame, rubySubProcess.isBinary());
     }
 
-    static void destroyRubySubProcessQueue() {
-        while (!rubySubProcessQueue.isEmpty()) {
-            rubySubProcessQueue.remove().tryDestroyProcess();
+
+    @Nullable
+    private Node decode(String filename, byte[] frame, boolean binary) {
+        try {
+            return binary ? binaryDecoder.decode(frame) : decoder.decode(frame);
+        } catch (Exception e) {
+            Utils.msg("\nFailed to decode AST of: " + filename + ": " + e.getMessage());
+            return null;
         }
     }
 
+
+    private void cleanTemp() {
+        new File(exchangeFile).delete();
+        new File(endMark).delete();
+    }
+
     /**
      * if ru by process exists, then destroy it
      */
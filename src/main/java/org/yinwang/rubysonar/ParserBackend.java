@@ -0,0 +1,62 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.rubysonar.ast.Node;
+
+import java.util.List;
+
+
+/**
+ * Turns ruby files into ASTs for {@link Parser}.  Chosen with
+ * {@code --parser}: "ruby" runs the jsonizer in external ruby processes
+ * ({@link RubyProcessBackend}), "jruby" runs it inside the JVM
+ * ({@link JRubyBackend}).  Both go through the same decoders, so they
+ * produce the same nodes for the same source.
+ */
+public interface ParserBackend {
+
+    @NotNull
+    String getName();
+
+
+    /**
+     * @return the tree, or {@code null} if the file can't be parsed
+     */
+    @Nullable
+    Node parse(@NotNull String file);
+
+
+    /**
+     * Parse {@code source} as the content of {@code file}, without reading
+     * or writing any file.
+     *
+     * @return the tree, or {@code null} if the source can't be parsed
+     */
+    @Nullable
+    Node parseSource(@NotNull String file, @NotNull String source);
+
+
+    /**
+     * @return the trees in the order of {@code files}, {@code null} for the
+     * ones that can't be parsed
+     */
+    @NotNull
+    List<Node> parseBatch(@NotNull List<String> files);
+
+
+    /**
+     * How many files can be parsed at the same time.
+     */
+    int getParallelism();
+
+
+    /**
+     * How many bytes of source are worth sending in one batch, 0 if
+     * batches don't help.
+     */
+    long getBatchBytes();
+
+
+    void close();
+}
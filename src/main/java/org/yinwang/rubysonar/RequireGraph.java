@@ -0,0 +1,156 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.yinwang.rubysonar.ast.Call;
+import org.yinwang.rubysonar.ast.Name;
+import org.yinwang.rubysonar.ast.Node;
+import org.yinwang.rubysonar.ast.Str;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Which project files require which.  Edges point from a file to the files
+ * it requires, i.e. to the files that have to be resolved before it.
+ */
+public class RequireGraph {
+
+    @NotNull
+    private Map<String, Set<String>> edges = new LinkedHashMap<>();
+
+
+    public void addFile(@NotNull String file) {
+        edges.computeIfAbsent(file, k -> new LinkedHashSet<>());
+    }
+
+
+    public void addEdge(@NotNull String from, @NotNull String to) {
+        addFile(to);
+        if (!from.equals(to)) {
+            edges.computeIfAbsent(from, k -> new LinkedHashSet<>()).add(to);
+        }
+    }
+
+
+    @NotNull
+    public Set<String> getRequires(@NotNull String file) {
+        Set<String> ret = edges.get(file);
+        return ret == null ? Collections.emptySet() : ret;
+    }
+
+
+    @NotNull
+    public Set<String> getFiles() {
+        return edges.keySet();
+    }
+
+
+    /**
+     * The names passed as string literals to {@code require} or {@code load}
+     * anywhere in {@code ast}, the same calls that Call.transform follows.
+     */
+    @NotNull
+    public static List<String> findRequires(@NotNull Node ast) {
+        List<String> names = new ArrayList<>();
+        AstCodec.walk(ast, n -> {
+            if (n instanceof Call && ((Call) n).func instanceof Name) {
+                Call call = (Call) n;
+                String id = ((Name) call.func).id;
+                if ((id.equals("require") || id.equals("load")) &&
+                        call.args != null && !call.args.isEmpty() &&
+                        call.args.get(0) instanceof Str)
+                {
+                    names.add(((Str) call.args.get(0)).value);
+                }
+            }
+        });
+        return names;
+    }
+
+
+    /**
+     * Strongly connected components (Tarjan), each component listed after
+     * every component it requires.  Iterative, so long require chains can't
+     * overflow the stack.
+     */
+    @NotNull
+    public List<List<String>> components() {
+        Map<String, Integer> index = new HashMap<>();
+        Map<String, Integer> lowlink = new HashMap<>();
+        Set<String> onStack = new HashSet<>();
+        Deque<String> stack = new ArrayDeque<>();
+        List<List<String>> result = new ArrayList<>();
+
+        // explicit call stack of (node, remaining successors)
+        Deque<String> work = new ArrayDeque<>();
+        Deque<Iterator<String>> iters = new ArrayDeque<>();
+
+        for (String root : edges.keySet()) {
+            if (index.containsKey(root)) {
+                continue;
+            }
+
+            visit(root, index, lowlink, onStack, stack);
+            work.push(root);
+            iters.push(getRequires(root).iterator());
+
+            while (!work.isEmpty()) {
+                String v = work.peek();
+                Iterator<String> it = iters.peek();
+
+                if (it.hasNext()) {
+                    String w = it.next();
+                    if (!index.containsKey(w)) {
+                        visit(w, index, lowlink, onStack, stack);
+                        work.push(w);
+                        iters.push(getRequires(w).iterator());
+                    } else if (onStack.contains(w)) {
+                        lowlink.put(v, Math.min(lowlink.get(v), index.get(w)));
+                    }
+                } else {
+                    work.pop();
+                    iters.pop();
+                    if (!work.isEmpty()) {
+                        String u = work.peek();
+                        lowlink.put(u, Math.min(lowlink.get(u), lowlink.get(v)));
+                    }
+
+                    if (lowlink.get(v).equals(index.get(v))) {
+                        List<String> component = new ArrayList<>();
+                        String w;
+                        do {
+                            w = stack.pop();
+                            onStack.remove(w);
+                            component.add(w);
+                        } while (!w.equals(v));
+                        result.add(component);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+
+    private static void visit(String v, Map<String, Integer> index, Map<String, Integer> lowlink,
+                              Set<String> onStack, Deque<String> stack)
+    {
+        int i = index.size();
+        index.put(v, i);
+        lowlink.put(v, i);
+        stack.push(v);
+        onStack.add(v);
+    }
+}
@@ -0,0 +1,214 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.rubysonar.ast.Node;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+
+/**
+ * Parses with the jsonizer running in external ruby processes, taken from
+ * a {@link WorkerPool}.  Streaming workers get small files in batches.
+ */
+public class RubyProcessBackend implements ParserBackend {
+
+    // batches are sized so that a worker answers one in about BATCH_TARGET
+    private static final long BATCH_TARGET = 50000000;     // nanoseconds
+    private static final long MIN_BATCH_BYTES = 4096;
+    private static final long MAX_BATCH_BYTES = 1 << 20;
+    private static final double EWMA_WEIGHT = 0.2;
+
+    @NotNull
+    private WorkerPool workers;
+    // moving average of batch parse time per source byte, 0 before the first batch
+    private double nanosPerByte = 0;
+
+
+    /**
+     * The ruby processes are sized by {@code --workers} (default: the
+     * number of processors plus five) and recycled after
+     * {@code --worker-max-parses} files (default 500).
+     */
+    public RubyProcessBackend() {
+        int n = Runtime.getRuntime().availableProcessors() + 5;
+        int maxParses = 500;
+        try {
+            n = Integer.parseInt(Analyzer.self.getOption("workers", String.valueOf(n)));
+            maxParses = Integer.parseInt(Analyzer.self.getOption("worker-max-parses", String.valueOf(maxParses)));
+        } catch (NumberFormatException e) {
+            Utils.die("--workers and --worker-max-parses need a number");
+        }
+        workers = new WorkerPool(n, maxParses);
+    }
+
+
+    @NotNull
+    @Override
+    public String getName() {
+        return "ruby";
+    }
+
+
+    @Nullable
+    @Override
+    public Node parse(@NotNull String file) {
+        return withWorker(rubyP -> new Parser(new File(file)).parseFile(file, rubyP));
+    }
+
+
+    @Nullable
+    @Override
+    public Node parseSource(@NotNull String file, @NotNull String source) {
+        return withWorker(rubyP -> new Parser(new File(file)).parseSource(file, source, rubyP));
+    }
+
+
+    /**
+     * Runs {@code parse} with a worker from the pool, waiting for one to be
+     * free.
+     */
+    @Nullable
+    private Node withWorker(@NotNull Function<RubySubProcess, Node> parse) {
+        RubySubProcess rubyP;
+        try {
+            rubyP = workers.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (rubyP == null) {
+            return null;
+        }
+
+        try {
+            return parse.apply(rubyP);
+        } finally {
+            rubyP.countParse(1);
+            workers.release(rubyP);
+        }
+    }
+
+
+    /**
+     * Sends the files with one request to a single worker, which answers
+     * with a frame per file.  Workers that don't stream get the files one
+     * by one.
+     */
+    @NotNull
+    @Override
+    public List<Node> parseBatch(@NotNull List<String> files) {
+        List<Node> ret = new ArrayList<>();
+
+        while (ret.size() < files.size()) {
+            RubySubProcess rubyP;
+            try {
+                rubyP = workers.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rubyP = null;
+            }
+            if (rubyP == null) {
+                while (ret.size() < files.size()) {
+                    ret.add(null);
+                }
+                break;
+            }
+
+            try {
+                List<String> rest = files.subList(ret.size(), files.size());
+                if (rubyP.isStreaming()) {
+                    parseBatch(rest, rubyP, ret);
+                } else {
+                    String file = rest.get(0);
+                    ret.add(new Parser(new File(file)).parseFile(file, rubyP));
+                    rubyP.countParse(1);
+                }
+            } finally {
+                workers.release(rubyP);
+            }
+        }
+        return ret;
+    }
+
+
+    /**
+     * Sends {@code files} as one batch and adds their trees to {@code ret}.
+     * Stops early if the worker dies, the rest goes to another worker.
+     */
+    private void parseBatch(@NotNull List<String> files, @NotNull RubySubProcess rubyP, @NotNull List<Node> ret) {
+        if (!rubyP.sendCommand("batch " + String.join("\t", files))) {
+            rubyP.tryDestroyProcess();
+            String file = files.get(0);
+            Analyzer.self.failedToParse.add(file);
+            ret.add(null);
+            return;
+        }
+
+        long start = System.nanoTime();
+        long bytes = 0;
+        for (String file : files) {
+            byte[] frame = rubyP.readFrame(Parser.TIMEOUT);
+            if (frame == null) {
+                if (rubyP.hasTimedOut()) {
+                    Utils.msg("\nTimed out while parsing: " + file);
+                } else {
+                    Utils.msg("\nRuby process died while parsing: " + file);
+                }
+                Analyzer.self.failedToParse.add(file);
+                ret.add(null);
+                return;
+            }
+            // --worker-max-parses counts files, not requests
+            rubyP.countParse(1);
+
+            Node node = frame.length == 0 ? null : Parser.decodeFrame(file, frame, rubyP.isBinary());
+            if (node == null) {
+                Analyzer.self.failedToParse.add(file);
+            }
+            ret.add(node);
+            bytes += new File(file).length();
+        }
+        recordBatch(bytes, System.nanoTime() - start);
+    }
+
+
+    private synchronized void recordBatch(long bytes, long nanos) {
+        double sample = (double) nanos / Math.max(bytes, 1);
+        nanosPerByte = nanosPerByte == 0 ? sample : EWMA_WEIGHT * sample + (1 - EWMA_WEIGHT) * nanosPerByte;
+    }
+
+
+    @Override
+    public int getParallelism() {
+        return workers.getMaxWorkers();
+    }
+
+
+    /**
+     * Batches grow while they are answered faster than {@code BATCH_TARGET},
+     * which happens as long as the per-request overhead dominates, and
+     * shrink when parsing itself does.  A file bigger than this is sent
+     * alone.  The file transport can't take batches.
+     */
+    @Override
+    public synchronized long getBatchBytes() {
+        if (RubySubProcess.getTransport().equals("file")) {
+            return 0;
+        }
+        if (nanosPerByte == 0) {
+            return MIN_BATCH_BYTES;
+        }
+        long bytes = (long) (BATCH_TARGET / nanosPerByte);
+        return Math.max(MIN_BATCH_BYTES, Math.min(MAX_BATCH_BYTES, bytes));
+    }
+
+
+    @Override
+    public void close() {
+        workers.close();
+    }
+}
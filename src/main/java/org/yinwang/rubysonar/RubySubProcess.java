@@ -3,35 +3,128 @@ package org.yinwang.rubysonar;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class RubySubProcess {
     private Process rubyProcess;
+    // prefork transport: a child of the master, talked to through named pipes
+    private ProcessHandle child;
+    private OutputStream commands;
     private static final String DUMP_RUBY_RESOURCE = "org/yinwang/rubysonar/ruby/dump_ruby.rb";
     private static final String RUBY_EXE = "irb";
+    private static final String RUBY_STREAM_EXE = "ruby";
     private String jsonizer;
     private String parserLog;
 
+    // pipe transport: the jsonizer answers each command with a length-prefixed frame on stdout
+    private boolean streaming = false;
+    // frames use the jsonizer's binary encoding instead of JSON
+    private boolean binary = false;
+    private DataInputStream frames;
+    private volatile boolean timedOut = false;
+    private volatile boolean destroyed = false;
+
+    // forks the prefork workers, shared by all of them
+    private static Process master;
+    private static BufferedReader masterReplies;
+
+    // bookkeeping for WorkerPool
+    private int parses = 0;
+    long idleSince;
+
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ruby-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
     public RubySubProcess() {
         String sid = Utils.newSessionId();
         jsonizer = Utils.locateTmp("dump_ruby", sid);
         parserLog = Utils.locateTmp("parser_log", sid);
     }
 
-    static public RubySubProcess newInstance() {
+    /**
+     * @throws IOException if a prefork worker can't be started
+     */
+    static public RubySubProcess newInstance() throws IOException {
         RubySubProcess p = new RubySubProcess();
-        p.startInterpreter(RUBY_EXE);
+        switch (getTransport()) {
+            case "prefork":
+                p.startPreforked();
+                break;
+            case "pipe":
+                p.startStreamingInterpreter(RUBY_STREAM_EXE);
+                break;
+            default:
+                p.startInterpreter(RUBY_EXE);
+        }
+        p.chooseFormat();
         return p;
     }
 
 
-    @Nullable
-    private void startInterpreter(String interpExe) {
+    /**
+     * A worker on the "pipe" transport, for when a prefork one can't be started.
+     */
+    static RubySubProcess newPipeInstance() {
+        RubySubProcess p = new RubySubProcess();
+        p.startStreamingInterpreter(RUBY_STREAM_EXE);
+        p.chooseFormat();
+        return p;
+    }
+
+
+    private void chooseFormat() {
+        if (streaming && useBinary()) {
+            binary = sendCommand("format binary");
+        }
+    }
+
+
+    /**
+     * {@code --wire binary} makes streaming workers send the compact binary
+     * encoding (see {@link BinaryAstDecoder}) rather than JSON.
+     */
+    static boolean useBinary() {
+        return Analyzer.self != null && Analyzer.self.getOption("wire", "json").equals("binary");
+    }
+
+
+    /**
+     * "pipe" (default) streams frames over the stdout of a plain ruby
+     * process per worker, "prefork" forks workers from a ruby process that
+     * has loaded and warmed up the jsonizer once, and streams frames over
+     * named pipes, "file" exchanges JSON through temp files with irb.
+     * Windows has neither fork nor named pipes and defaults to "file".
+     */
+    static String getTransport() {
+        String fallback = isWindows() ? "file" : "pipe";
+        return Analyzer.self == null ? fallback : Analyzer.self.getOption("transport", fallback);
+    }
+
+
+    private void writeJsonizer() {
         String jsonizeStr = "";
-        Process p = null;
 
         try {
             InputStream jsonize =
@@ -50,6 +143,13 @@ public class RubySubProcess {
         } catch (Exception e) {
             Utils.die("Failed to write into: " + jsonizer);
         }
+    }
+
+
+    @Nullable
+    private void startInterpreter(String interpExe) {
+        Process p = null;
+        writeJsonizer();
 
         ProcessBuilder builder = new ProcessBuilder();
         if (getCurrentOS().contains("win")) {
@@ -76,6 +176,174 @@ public class RubySubProcess {
         rubyProcess = p;
     }
 
+
+    private void startStreamingInterpreter(String interpExe) {
+        Process p = null;
+        writeJsonizer();
+
+        ProcessBuilder builder = new ProcessBuilder();
+        if (getCurrentOS().contains("win")) {
+            builder.command("cmd.exe", "/c", interpExe, jsonizer, "--stream");
+        } else {
+            builder.command(interpExe, jsonizer, "--stream");
+        }
+
+        // stdout carries the frames, everything else goes to the log
+        builder.redirectError(new File(parserLog));
+        try {
+            builder.environment().remove("RUBYLIB");
+            p = builder.start();
+        } catch (Exception e) {
+            Utils.msg(e.getMessage());
+            Utils.die("Failed to start ruby");
+        }
+
+        rubyProcess = p;
+        frames = new DataInputStream(new BufferedInputStream(p.getInputStream()));
+        streaming = true;
+    }
+
+
+    /**
+     * Fork a worker from the master and connect to it.  A worker that
+     * can't be had is cleaned up and reported with an IOException, the
+     * pool decides what to do instead.
+     */
+    private void startPreforked() throws IOException {
+        File dir = new File(Utils.locateTmp("worker", Utils.newSessionId()));
+        File requests = new File(dir, "requests");
+        File responses = new File(dir, "responses");
+        if (!dir.mkdirs()) {
+            throw new IOException("Failed to create directory: " + dir);
+        }
+
+        try {
+            Process mkfifo = new ProcessBuilder("mkfifo", requests.getPath(), responses.getPath()).start();
+            if (mkfifo.waitFor() != 0) {
+                throw new IOException("Failed to create named pipes in: " + dir);
+            }
+
+            child = ProcessHandle.of(spawn(dir.getPath())).orElse(null);
+            // in the order the child opens them, each open waits for the other end
+            commands = (OutputStream) openPipe(requests, false);
+            frames = new DataInputStream(new BufferedInputStream((InputStream) openPipe(responses, true)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            tryDestroyProcess();
+            throw new IOException("interrupted starting ruby worker");
+        } catch (IOException e) {
+            tryDestroyProcess();
+            throw e;
+        } finally {
+            // the open ends keep the pipes
+            requests.delete();
+            responses.delete();
+            dir.delete();
+        }
+        streaming = true;
+    }
+
+
+    /**
+     * Open our end of the named pipe {@code fifo}, which blocks until the
+     * child has opened the other end.  Gives up if the child dies or takes
+     * longer than {@link Parser#TIMEOUT}, in which case the other end is
+     * opened here to release the blocked open.
+     */
+    @NotNull
+    private Closeable openPipe(@NotNull File fifo, boolean read) throws IOException {
+        FutureTask<Closeable> open = new FutureTask<>(() ->
+                read ? new FileInputStream(fifo) : new FileOutputStream(fifo));
+        Thread t = new Thread(open, "ruby-pipe-open");
+        t.setDaemon(true);
+        t.start();
+
+        long deadline = System.currentTimeMillis() + Parser.TIMEOUT;
+        while (true) {
+            try {
+                return open.get(100, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if ((child != null && child.isAlive()) && System.currentTimeMillis() < deadline) {
+                    continue;
+                }
+                try {
+                    // lets the blocked open return, then both ends are closed
+                    Closeable other = read ? new FileOutputStream(fifo) : new FileInputStream(fifo);
+                    try {
+                        open.get().close();
+                    } finally {
+                        other.close();
+                    }
+                } catch (Exception ignored) {
+                    // released either way
+                }
+                throw new IOException("ruby worker didn't open " + fifo);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted opening " + fifo);
+            }
+        }
+    }
+
+
+    /**
+     * Ask the master to fork a worker serving the pipes in {@code dir},
+     * starting the master first if there is none.
+     *
+     * @return the worker's pid
+     */
+    private long spawn(String dir) throws IOException {
+        synchronized (RubySubProcess.class) {
+            if (master == null || !master.isAlive()) {
+                writeJsonizer();
+                ProcessBuilder builder = new ProcessBuilder(RUBY_STREAM_EXE, jsonizer, "--prefork");
+                builder.redirectError(new File(parserLog));
+                builder.environment().remove("RUBYLIB");
+                master = builder.start();
+                masterReplies = new BufferedReader(new InputStreamReader(master.getInputStream(), Utils.UTF_8));
+            }
+
+            if (!sendCommand("spawn " + dir, master)) {
+                throw new IOException("ruby master is gone");
+            }
+            // a master that doesn't answer is killed, which ends the read
+            Process m = master;
+            ScheduledFuture<?> kill = watchdog.schedule(m::destroy, Parser.TIMEOUT, TimeUnit.MILLISECONDS);
+            String pid;
+            try {
+                pid = masterReplies.readLine();
+            } finally {
+                kill.cancel(false);
+            }
+            if (pid == null) {
+                throw new IOException("ruby master is gone");
+            }
+            try {
+                return Long.parseLong(pid.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("ruby master answered: " + pid);
+            }
+        }
+    }
+
+
+    /**
+     * Stops the prefork master.  Workers already forked keep running until
+     * their pipes are closed.
+     */
+    static void closeMaster() {
+        synchronized (RubySubProcess.class) {
+            if (master != null) {
+                master.destroy();
+                master = null;
+                masterReplies = null;
+            }
+        }
+    }
+
+
     boolean sendCommand(String cmd, @NotNull Process rubyProcess) {
         try {
             OutputStreamWriter writer = new OutputStreamWriter(rubyProcess.getOutputStream());
@@ -90,19 +358,123 @@ public class RubySubProcess {
     }
 
     boolean sendCommand(String cmd) {
+        if (commands != null) {
+            try {
+                commands.write((cmd + "\n").getBytes(Utils.UTF_8));
+                commands.flush();
+                return true;
+            } catch (IOException e) {
+                Utils.msg("\nFailed to send command to Ruby worker: " + cmd);
+                return false;
+            }
+        }
         return sendCommand(cmd, rubyProcess);
     }
 
+
+    /**
+     * Read the next frame written by a streaming process. The process is
+     * killed if no frame arrives within {@code timeout} milliseconds.
+     *
+     * @return the payload (empty if ruby failed to parse the file), or
+     * {@code null} if the process died or timed out
+     */
+    @Nullable
+    byte[] readFrame(long timeout) {
+        timedOut = false;
+        ScheduledFuture<?> kill = watchdog.schedule(() -> {
+            timedOut = true;
+            tryDestroyProcess();
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        try {
+            int length = frames.readInt();
+            byte[] payload = new byte[length];
+            frames.readFully(payload);
+            return payload;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            kill.cancel(false);
+        }
+    }
+
+
+    boolean isStreaming() {
+        return streaming;
+    }
+
+
+    boolean isBinary() {
+        return binary;
+    }
+
+
+    boolean hasTimedOut() {
+        return timedOut;
+    }
+
+
+    /**
+     * False once the process exited or was destroyed, e.g. after a timeout.
+     */
+    boolean isAlive() {
+        if (destroyed) {
+            return false;
+        }
+        if (child != null) {
+            return child.isAlive();
+        }
+        return rubyProcess != null && rubyProcess.isAlive();
+    }
+
+
+    /**
+     * Count {@code n} more files parsed, a batch counts each of its files.
+     */
+    void countParse(int n) {
+        parses += n;
+    }
+
+
+    /**
+     * @return the number of files parsed so far
+     */
+    int getParses() {
+        return parses;
+    }
+
+
     /**
      * if ruby process exists, then destroy it
      */
     void tryDestroyProcess() {
+        destroyed = true;
         if (rubyProcess != null) {
             rubyProcess.destroy();
         }
+        if (child != null) {
+            child.destroy();
+            try {
+                // null if the worker never got connected
+                if (commands != null) {
+                    commands.close();
+                }
+                if (frames != null) {
+                    frames.close();
+                }
+            } catch (IOException e) {
+                // already gone
+            }
+        }
     }
 
     private String getCurrentOS() {
         return System.getProperty("os.name").toLowerCase();
     }
+
+
+    private static boolean isWindows() {
+        return System.getProperty("os.name").toLowerCase().contains("win");
+    }
 }
@@ -0,0 +1,118 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * An analysis of the Rails gems saved to disk, so that the language server
+ * only has to resolve the workspace.  Snapshots are named after the gem
+ * directory and the versioned names of the Rails gems, a new gem version
+ * simply misses and gets analyzed again.
+ */
+public class Snapshot {
+
+    // bump whenever the analyzer's serialized form changes
+    private static final int VERSION = 4;
+
+
+    /**
+     * Where the snapshot for the installed gems lives, or {@code null} if
+     * there are no Rails gems to analyze.
+     */
+    @Nullable
+    public static String getPath() {
+        List<String> gems = new ArrayList<>();
+        for (String p : Utils.getRailsPath()) {
+            gems.add(new File(p).getName());
+        }
+        if (gems.isEmpty()) {
+            return null;
+        }
+        Collections.sort(gems);
+
+        String key = VERSION + "\n" + Utils.gemsPath + "\n" + String.join("\n", gems);
+        String name = "rails-" + Utils.getSHA(key.getBytes(Utils.UTF_8)) + ".snap";
+        return Utils.makePathString(Utils.getSystemTempDir(), "rubysonar", "snapshots", name);
+    }
+
+
+    public static void write(@NotNull Analyzer analyzer, @NotNull String path) {
+        File target = new File(path);
+        File dir = target.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            Utils.msg("Failed to create snapshot directory: " + dir);
+            return;
+        }
+
+        File tmp = new File(path + "." + Utils.newSessionId());
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))))
+        {
+            out.writeObject(analyzer);
+        } catch (Exception e) {
+            Utils.msg("Failed to write snapshot: " + e);
+            tmp.delete();
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception e) {
+            Utils.msg("Failed to write snapshot: " + e);
+            tmp.delete();
+        }
+    }
+
+
+    /**
+     * A snapshot that can't be read, e.g. because it was cut short or the
+     * classes in it changed, is removed so that it gets written again.
+     *
+     * @return the saved analyzer, or {@code null} if there is none or it
+     * can't be read
+     */
+    @Nullable
+    public static Analyzer read(@NotNull String path) {
+        File f = new File(path);
+        if (!f.canRead()) {
+            return null;
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(
+                new GZIPInputStream(new BufferedInputStream(new FileInputStream(f)))))
+        {
+            return (Analyzer) in.readObject();
+        } catch (Exception e) {
+            Utils.msg("Removing unreadable snapshot " + path + ": " + e);
+            f.delete();
+            return null;
+        }
+    }
+
+
+    /**
+     * Read the snapshot on a background thread.  The builtin types must be
+     * initialized before, which is done by creating the first Analyzer.
+     */
+    @NotNull
+    public static CompletableFuture<Analyzer> readAsync(@NotNull String path) {
+        return CompletableFuture.supplyAsync(() -> read(path));
+    }
+}
@@ -12,6 +12,9 @@ import org.yinwang.rubysonar.types.UnionType;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class State implements Serializable{
@@ -27,43 +30,195 @@ public class State implements Serializable{
     }
 
 
+    // shared by all tables that were never written to
+    private static final Map<String, List<Binding>> EMPTY = Collections.emptyMap();
+
+    // EMPTY until the first write, most types never get any attributes.
+    // A HamtMap after that, so that copies share the table until they diverge
     @NotNull
-    public Map<String, List<Binding>> table = new HashMap<>();
+    public volatile Map<String, List<Binding>> table = EMPTY;
     @Nullable
     public State parent;      // all are non-null except global table
     @Nullable
     public State supers;
+    // class table under an instance table, read through for the names the
+    // instance hasn't written itself
+    @Nullable
+    public State base;
     public StateType stateType;
     public Type type;
     @NotNull
     public String path = "";
+    // file being resolved when this table was created
+    @Nullable
+    public String origin;
+
+    // bumped by hierarchyChanged, which makes all lookup caches stale
+    private static final AtomicLong hierarchyEpoch = new AtomicLong();
+    // numbers the lookup caches, see getLookupStamp
+    private static final AtomicLong lookupCaches = new AtomicLong();
+    // bumped on every change of this table, through VERSION since writers
+    // can race when files are resolved in parallel
+    private transient volatile int version = 0;
+    private static final AtomicIntegerFieldUpdater<State> VERSION =
+            AtomicIntegerFieldUpdater.newUpdater(State.class, "version");
+    @Nullable
+    private transient volatile LookupCache lookupCache;
+
+
+    /**
+     * The tables that {@link #lookupLocal} and {@link #lookupAttr} probe, in
+     * order, and what they found for each name, valid while the hierarchy
+     * epoch and the versions of the tables the chains were built from stay
+     * as they were.
+     */
+    private static final class LookupCache {
+        final long id = lookupCaches.incrementAndGet();
+        final long epoch;
+        // every table read to build the chains, base layers included
+        @NotNull
+        final State[] deps;
+        @NotNull
+        final int[] versions;
+        // null if this table is all there is to probe, the common case
+        @Nullable
+        final State[] localChain;
+        @Nullable
+        final State[] attrChain;
+        // names to bindings or NONE, made on the first lookup that needs them
+        @Nullable
+        volatile Map<String, Object> locals;
+        @Nullable
+        volatile Map<String, Object> attrs;
+
+
+        LookupCache(long epoch, @NotNull Map<State, Integer> deps,
+                    @NotNull List<State> localChain, @NotNull List<State> attrChain)
+        {
+            this.epoch = epoch;
+            this.deps = new State[deps.size()];
+            this.versions = new int[deps.size()];
+            int i = 0;
+            for (Map.Entry<State, Integer> e : deps.entrySet()) {
+                this.deps[i] = e.getKey();
+                this.versions[i] = e.getValue();
+                i++;
+            }
+            this.localChain = localChain.size() > 1 ? localChain.toArray(new State[0]) : null;
+            this.attrChain = attrChain.size() > 1 ? attrChain.toArray(new State[0]) : null;
+        }
+
+
+        boolean isCurrent(long epoch) {
+            if (this.epoch != epoch) {
+                return false;
+            }
+            for (int i = 0; i < deps.length; i++) {
+                if (deps[i].version != versions[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+
+        @NotNull
+        synchronized Map<String, Object> results(boolean attr) {
+            Map<String, Object> m = attr ? attrs : locals;
+            if (m == null) {
+                m = new ConcurrentHashMap<>();
+                if (attr) {
+                    attrs = m;
+                } else {
+                    locals = m;
+                }
+            }
+            return m;
+        }
+    }
+
+
+    // cached misses
+    private static final Object NONE = new Object();
 
 
     public State(@Nullable State parent, StateType type) {
         this.parent = parent;
         this.stateType = type;
+        this.origin = Analyzer.self == null ? null : Analyzer.self.getCurrentFile();
     }
 
 
     public State(@NotNull State s) {
-        this.table = new HashMap<>();
-        this.table.putAll(s.table);
+        this.table = copyOf(s.table);
         this.parent = s.parent;
         this.stateType = s.stateType;
         this.supers = s.supers;
+        this.base = s.base;
         this.type = s.type;
         this.path = s.path;
+        this.origin = s.origin;
+    }
+
+
+    /**
+     * Tables are shared between threads when files are resolved in parallel,
+     * HamtMap updates are atomic.
+     */
+    @NotNull
+    private static Map<String, List<Binding>> newTable() {
+        return new HamtMap<>();
+    }
+
+
+    /**
+     * An independent copy of {@code t}, O(1) for a HamtMap.
+     */
+    @NotNull
+    private static Map<String, List<Binding>> copyOf(@NotNull Map<String, List<Binding>> t) {
+        if (t instanceof HamtMap) {
+            return ((HamtMap<String, List<Binding>>) t).fork();
+        } else if (t.isEmpty()) {
+            return EMPTY;
+        } else {
+            Map<String, List<Binding>> ret = newTable();
+            ret.putAll(t);
+            return ret;
+        }
+    }
+
+
+    @NotNull
+    private Map<String, List<Binding>> writableTable() {
+        Map<String, List<Binding>> t = table;
+        if (t == EMPTY) {
+            synchronized (this) {
+                if (table == EMPTY) {
+                    table = newTable();
+                }
+                t = table;
+            }
+        }
+        return t;
     }
 
 
     // erase and overwrite this to s's contents
     public void overwrite(@NotNull State s) {
-        this.table = s.table;
+        Map<String, List<Binding>> next = copyOf(s.table);
+        if (Analyzer.self != null && Analyzer.self.isRecordingWrites()) {
+            // every name bound differently afterwards is a write
+            HamtMap.diff(table, next, (id, before, after) -> Analyzer.self.recordWrite(this, id, after, before));
+        }
+        this.table = next;
         this.parent = s.parent;
         this.stateType = s.stateType;
         this.supers = s.supers;
+        this.base = s.base;
         this.type = s.type;
         this.path = s.path;
+        this.origin = s.origin;
+        changed();
     }
 
 
@@ -73,26 +228,24 @@ public class State implements Serializable{
     }
 
 
+    /**
+     * Join the bindings of {@code other}, e.g. of the other branch of an
+     * if, into this state.  Only the names bound differently in the two are
+     * visited, for copies of the same state that is what their branches
+     * changed.
+     */
     public void merge(State other) {
-        for (Map.Entry<String, List<Binding>> e1 : this.table.entrySet()) {
-            List<Binding> b1 = e1.getValue();
-            List<Binding> b2 = other.table.get(e1.getKey());
-
-            // both branch have the same name, need merge
-            if (b2 != null && b1 != b2) {
-                b1.addAll(b2);
-            }
-        }
-
-        for (Map.Entry<String, List<Binding>> e2 : other.table.entrySet()) {
-            List<Binding> b1 = this.table.get(e2.getKey());
-            List<Binding> b2 = e2.getValue();
-
-            // both branch have the same name, need merge
-            if (b1 == null && b1 != b2) {
-                this.update(e2.getKey(), b2);
+        HamtMap.diff(table, other.table, (id, b1, b2) -> {
+            if (b1 == null) {
+                update(id, b2);
+            } else if (b2 != null) {
+                // both branches bound the name, it can be either
+                List<Binding> bs = new ArrayList<>(b1.size() + b2.size());
+                bs.addAll(b1);
+                bs.addAll(b2);
+                update(id, bs);
             }
-        }
+        });
     }
 
 
@@ -110,11 +263,82 @@ public class State implements Serializable{
 
     public void setSuper(State sup) {
         supers = sup;
+        changed();
+    }
+
+
+    /**
+     * Layer this table over {@code base}: names not written here are
+     * looked up there, except for class methods, which stay with the class.
+     * This is how an instance sees its class without copying its table.
+     */
+    public void setBase(@Nullable State base) {
+        this.base = base;
+        changed();
+    }
+
+
+    /**
+     * The bindings of {@code id} in this table, or in the base layers if it
+     * hasn't been written here.
+     */
+    @Nullable
+    private List<Binding> get(String id) {
+        List<Binding> bs = table.get(id);
+        if (bs == null && base != null) {
+            bs = withoutClassMethods(base.get(id));
+        }
+        return bs;
+    }
+
+
+    /**
+     * What an instance table takes over from its class table for a name:
+     * the last binding that isn't a class method.
+     */
+    @Nullable
+    private static List<Binding> withoutClassMethods(@Nullable List<Binding> bs) {
+        if (bs == null) {
+            return null;
+        }
+        if (bs.size() == 1) {
+            return bs.get(0).kind == Binding.Kind.CLASS_METHOD ? null : bs;
+        }
+        for (int i = bs.size() - 1; i >= 0; i--) {
+            if (bs.get(i).kind != Binding.Kind.CLASS_METHOD) {
+                List<Binding> ret = new ArrayList<>(1);
+                ret.add(bs.get(i));
+                return ret;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * All names visible in this table, the base layers included.  Only
+     * materialized for layered tables.
+     */
+    @NotNull
+    private Map<String, List<Binding>> view() {
+        if (base == null) {
+            return table;
+        }
+        Map<String, List<Binding>> ret = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Binding>> e : base.view().entrySet()) {
+            List<Binding> bs = withoutClassMethods(e.getValue());
+            if (bs != null) {
+                ret.put(e.getKey(), bs);
+            }
+        }
+        ret.putAll(table);
+        return ret;
     }
 
 
     public void setStateType(StateType type) {
         this.stateType = type;
+        changed();
     }
 
 
@@ -129,7 +353,63 @@ public class State implements Serializable{
 
 
     public void remove(String id) {
-        table.remove(id);
+        List<Binding> old = erase(id);
+        if (old != null && Analyzer.self != null) {
+            Analyzer.self.recordWrite(this, id, null, old);
+        }
+    }
+
+
+    @Nullable
+    private List<Binding> erase(String id) {
+        if (table == EMPTY) {
+            return null;
+        }
+        List<Binding> old = table.remove(id);
+        changed();
+        return old;
+    }
+
+
+    private void put(String id, @NotNull List<Binding> bs) {
+        List<Binding> old = writableTable().put(id, bs);
+        changed();
+        if (Analyzer.self != null) {
+            Analyzer.self.recordWrite(this, id, bs, old);
+        }
+    }
+
+
+    /**
+     * Put back what {@code id} was bound to before a write, or remove it if
+     * it wasn't bound.  Not recorded as a write.
+     */
+    void restore(String id, @Nullable List<Binding> previous) {
+        if (previous == null) {
+            erase(id);
+        } else {
+            writableTable().put(id, previous);
+            changed();
+        }
+    }
+
+
+    /**
+     * Called after every change of this table.  Other tables that cached
+     * lookups through it see the new version.
+     */
+    private void changed() {
+        VERSION.incrementAndGet(this);
+        lookupCache = null;
+    }
+
+
+    /**
+     * Makes all cached lookups stale, for changes to the hierarchy that
+     * don't go through a table, e.g. a type getting a new table.
+     */
+    public static void hierarchyChanged() {
+        hierarchyEpoch.incrementAndGet();
     }
 
 
@@ -162,7 +442,7 @@ public class State implements Serializable{
     // directly insert a given binding list
     @NotNull
     public List<Binding> update(String id, @NotNull List<Binding> bs) {
-        this.table.put(id, bs);
+        put(id, bs);
         return bs;
     }
 
@@ -171,7 +451,7 @@ public class State implements Serializable{
     public List<Binding> update(String id, @NotNull Binding b) {
         List<Binding> bs = new ArrayList<>();
         bs.add(b);
-        this.table.put(id, bs);
+        put(id, bs);
         return bs;
     }
 
@@ -225,17 +505,19 @@ public class State implements Serializable{
      */
     @Nullable
     public List<Binding> lookupLocal(String name) {
-        List<Binding> b =  table.get(name);
-        if (b == null && canLookupSuper()) {
-            return lookupSuper(name);
+        if (name == null) {
+            return null;
         }
-        return b;
+        if (!canLookupSuper()) {
+            return get(name);
+        }
+        return probe(getLookupCache(), false, name);
     }
 
     // look up a name from the super for the instance
     @Nullable
     public List<Binding> lookupSuper(String name) {
-        List<Binding> superBinding =  table.get("super");
+        List<Binding> superBinding = get("super");
         if (superBinding != null) {
             State superTable = superBinding.get(0).type.table;
             return superTable.lookupLocal(name);
@@ -305,32 +587,127 @@ public class State implements Serializable{
      * rule. The new MRO can be implemented, but will probably not introduce
      * much difference.
      */
-    @NotNull
-    private static Set<State> looked = new HashSet<>();    // circularity prevention
+    @Nullable
+    public List<Binding> lookupAttr(String attr) {
+        if (supers == null && !canLookupSuper()) {
+            return get(attr);
+        }
+        return probe(getLookupCache(), true, attr);
+    }
 
 
+    /**
+     * The first bindings of {@code name} on the attribute or local lookup
+     * chain.  A chain of more than this table goes through the cache, so
+     * that a repeated lookup is one probe.
+     */
     @Nullable
-    public List<Binding> lookupAttr(String attr) {
-        if (looked.contains(this)) {
-            return null;
-        } else {
-            List<Binding> b = lookupLocal(attr);
-            if (b != null) {
-                return b;
-            } else {
-                if (supers != null && !supers.isEmpty()) {
-                    looked.add(this);
-                    b = supers.lookupAttr(attr);
-                    if (b != null) {
-                        looked.remove(this);
-                        return b;
-                    }
-                    looked.remove(this);
-                    return null;
-                } else {
-                    return null;
+    @SuppressWarnings("unchecked")
+    private List<Binding> probe(@NotNull LookupCache c, boolean attr, @NotNull String name) {
+        State[] chain = attr ? c.attrChain : c.localChain;
+        if (chain == null) {
+            return get(name);
+        }
+        Map<String, Object> cache = c.results(attr);
+        Object hit = cache.get(name);
+        if (hit != null) {
+            return hit == NONE ? null : (List<Binding>) hit;
+        }
+
+        List<Binding> bs = null;
+        for (State s : chain) {
+            bs = s.get(name);
+            if (bs != null) {
+                break;
+            }
+        }
+        cache.put(name, bs == null ? NONE : bs);
+        return bs;
+    }
+
+
+    /**
+     * Whether lookups in this table go on to other tables, through "super"
+     * or the supers.  If not, a lookup is a probe of this table and its
+     * base and there is nothing to gain from remembering it.
+     */
+    public boolean hasLookupChain() {
+        return supers != null || (canLookupSuper() && get("super") != null);
+    }
+
+
+    /**
+     * A number that changes whenever a lookup in this table may give a
+     * different answer, for callers that keep what they looked up: that of
+     * the lookup cache, which is made again when a table on its chains
+     * changes.  Read it before the lookup.
+     */
+    public long getLookupStamp() {
+        return getLookupCache().id;
+    }
+
+
+    @NotNull
+    private LookupCache getLookupCache() {
+        // read before the tables, a change meanwhile leaves the cache stale
+        long epoch = hierarchyEpoch.get();
+        LookupCache c = lookupCache;
+        if (c == null || !c.isCurrent(epoch)) {
+            Map<State, Integer> deps = new IdentityHashMap<>();
+            List<State> attrChain = new ArrayList<>();
+            Set<State> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            addLocalChain(this, attrChain, seen, deps);
+            List<State> localChain = new ArrayList<>(attrChain);
+
+            // then the supers, each of which with its own "super" chain;
+            // stops at a cycle
+            Set<State> looked = Collections.newSetFromMap(new IdentityHashMap<>());
+            looked.add(this);
+            State sup = supers;
+            while (sup != null && looked.add(sup)) {
+                depend(sup, deps);
+                if (sup.isEmpty()) {
+                    break;
                 }
+                addLocalChain(sup, attrChain, seen, deps);
+                sup = sup.supers;
             }
+
+            c = new LookupCache(epoch, deps, localChain, attrChain);
+            lookupCache = c;
+        }
+        return c;
+    }
+
+
+    /**
+     * Adds {@code s} and the tables that its lookups continue in through
+     * the "super" binding (see {@link #lookupSuper}).
+     */
+    private static void addLocalChain(@NotNull State s, @NotNull List<State> chain, @NotNull Set<State> seen,
+                                      @NotNull Map<State, Integer> deps)
+    {
+        State t = s;
+        while (t != null && seen.add(t)) {
+            depend(t, deps);
+            chain.add(t);
+            if (!t.canLookupSuper()) {
+                break;
+            }
+            List<Binding> superBinding = t.get("super");
+            t = superBinding == null ? null : superBinding.get(0).type.table;
+        }
+    }
+
+
+    /**
+     * Adds {@code s} and its base layers to {@code deps}, with their
+     * versions.  Called before they are read, so that a change meanwhile
+     * leaves the cache stale.
+     */
+    private static void depend(@NotNull State s, @NotNull Map<State, Integer> deps) {
+        for (State t = s; t != null && !deps.containsKey(t); t = t.base) {
+            deps.put(t, t.version);
         }
     }
 
@@ -450,9 +827,9 @@ public class State implements Serializable{
 
 
     public void putAll(@NotNull State other) {
-        for (Map.Entry<String, List<Binding>> e : other.table.entrySet()) {
+        for (Map.Entry<String, List<Binding>> e : other.view().entrySet()) {
             if (!Name.isSyntheticName(e.getKey())) {
-                this.table.put(e.getKey(), e.getValue());
+                put(e.getKey(), e.getValue());
             }
         }
     }
@@ -460,14 +837,26 @@ public class State implements Serializable{
 
     @NotNull
     public Set<String> keySet() {
-        return table.keySet();
+        return view().keySet();
+    }
+
+
+    /**
+     * Whether both tables have the same names, without materializing them
+     * when they are layered over the same base.
+     */
+    public boolean hasSameKeys(@NotNull State other) {
+        if (base == other.base && table.keySet().equals(other.table.keySet())) {
+            return true;
+        }
+        return keySet().equals(other.keySet());
     }
 
 
     @NotNull
     public Collection<Binding> values() {
         List<Binding> ret = new ArrayList<>();
-        for (List<Binding> bs : table.values()) {
+        for (List<Binding> bs : view().values()) {
             ret.addAll(bs);
         }
         return ret;
@@ -475,7 +864,7 @@ public class State implements Serializable{
 
 
     public boolean isEmpty() {
-        return table.isEmpty();
+        return table.isEmpty() && (base == null || view().isEmpty());
     }
 
     private boolean canLookupSuper() {
@@ -499,7 +888,7 @@ public class State implements Serializable{
     @NotNull
     @Override
     public String toString() {
-        return "(state:" + getStateType() + ":" + table.keySet() + ")";
+        return "(state:" + getStateType() + ":" + keySet() + ")";
     }
 
 }
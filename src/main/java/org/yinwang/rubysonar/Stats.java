@@ -9,12 +9,12 @@ public class Stats implements Serializable {
     Map<String, Object> contents = new HashMap<>();
 
 
-    public void putInt(String key, long value) {
+    public synchronized void putInt(String key, long value) {
         contents.put(key, value);
     }
 
 
-    public void inc(String key, long x) {
+    public synchronized void inc(String key, long x) {
         Long old = getInt(key);
 
         if (old == null) {
@@ -30,7 +30,7 @@ public class Stats implements Serializable {
     }
 
 
-    public Long getInt(String key) {
+    public synchronized Long getInt(String key) {
         Long ret = (Long) contents.get(key);
         if (ret == null) {
             return 0L;
@@ -0,0 +1,175 @@
+package org.yinwang.rubysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The ruby processes that do the parsing.  Processes are started when a
+ * parse finds none idle, up to {@code --workers}, and are stopped again
+ * after sitting idle for a minute, so the pool follows the parse demand.
+ *
+ * A process that died or timed out is dropped when it comes back and a
+ * fresh one is started on the next demand; a process that served
+ * {@code --worker-max-parses} files is retired the same way, before its
+ * heap grows too big.  A prefork worker that can't be started is replaced
+ * by a "pipe" one.  A supervisor thread drops idle processes that died.
+ * The pool lives until {@link #close}, so the language server can parse
+ * again after the initial analysis.
+ */
+public class WorkerPool {
+
+    private static final long CHECK_INTERVAL = 10;     // seconds
+    private static final long IDLE_TIMEOUT = 60000;    // milliseconds
+
+    private final int maxWorkers;
+    private final int maxParses;
+
+    // most recently used last, guarded by this
+    @NotNull
+    private Deque<RubySubProcess> idle = new ArrayDeque<>();
+    private int live = 0;
+    private boolean closed = false;
+
+    @NotNull
+    private ScheduledExecutorService supervisor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ruby-supervisor");
+        t.setDaemon(true);
+        return t;
+    });
+
+
+    public WorkerPool(int maxWorkers, int maxParses) {
+        this.maxWorkers = Math.max(1, maxWorkers);
+        this.maxParses = maxParses;
+        supervisor.scheduleWithFixedDelay(this::check, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.SECONDS);
+    }
+
+
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+
+    /**
+     * A healthy process for one parse, started if none is idle and the pool
+     * isn't full, otherwise waited for.  Hand it back with {@link #release}.
+     *
+     * @return {@code null} if the pool is closed
+     */
+    @Nullable
+    public RubySubProcess acquire() throws InterruptedException {
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    return null;
+                }
+                RubySubProcess p = idle.pollLast();
+                if (p != null) {
+                    if (p.isAlive()) {
+                        return p;
+                    }
+                    live--;
+                    Analyzer.self.stats.inc("worker.died");
+                    continue;
+                }
+                if (live < maxWorkers) {
+                    live++;
+                    break;
+                }
+                wait();
+            }
+        }
+
+        // starting takes a while, don't hold up the others
+        RubySubProcess p = null;
+        try {
+            try {
+                p = RubySubProcess.newInstance();
+            } catch (IOException e) {
+                // e.g. a prefork master that can't fork, the next acquire tries again
+                Utils.msg("\nFailed to start ruby worker, using a pipe worker instead: " + e.getMessage());
+                Analyzer.self.stats.inc("worker.failed");
+                p = RubySubProcess.newPipeInstance();
+            }
+            Analyzer.self.stats.inc("worker.started");
+            return p;
+        } finally {
+            if (p == null) {
+                synchronized (this) {
+                    live--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+
+    public void release(@NotNull RubySubProcess p) {
+        boolean retire = false;
+        if (!p.isAlive()) {
+            // timed out or crashed, its replacement is started on demand
+            retire = true;
+            Analyzer.self.stats.inc("worker.replaced");
+        } else if (maxParses > 0 && p.getParses() >= maxParses) {
+            retire = true;
+            Analyzer.self.stats.inc("worker.recycled");
+        }
+
+        synchronized (this) {
+            if (retire || closed) {
+                p.tryDestroyProcess();
+                live--;
+            } else {
+                p.idleSince = System.currentTimeMillis();
+                idle.addLast(p);
+            }
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Drops idle processes that died or haven't been needed for a while.
+     */
+    private synchronized void check() {
+        long now = System.currentTimeMillis();
+        Iterator<RubySubProcess> it = idle.iterator();
+        while (it.hasNext()) {
+            RubySubProcess p = it.next();
+            if (!p.isAlive()) {
+                Analyzer.self.stats.inc("worker.died");
+            } else if (now - p.idleSince > IDLE_TIMEOUT) {
+                p.tryDestroyProcess();
+            } else {
+                continue;
+            }
+            it.remove();
+            live--;
+        }
+        notifyAll();
+    }
+
+
+    public void close() {
+        supervisor.shutdownNow();
+        synchronized (this) {
+            closed = true;
+            for (RubySubProcess p : idle) {
+                p.tryDestroyProcess();
+            }
+            live -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        RubySubProcess.closeMaster();
+    }
+}
@@ -19,6 +19,9 @@ public class Attribute extends Node {
     public Node target;
     @NotNull
     public Name attr;
+    // what getAttrType found for the last few receivers
+    @Nullable
+    private transient InlineCache lookups;
 
 
     public Attribute(@Nullable Node target, @NotNull Name attr, String file, int start, int end, int line, int col) {
@@ -92,16 +95,10 @@ public class Attribute extends Node {
 
 
     private Type getAttrType(@NotNull Type targetType) {
-        List<Binding> bs;
-        if (targetType instanceof ClassType || targetType instanceof ModuleType) {
-            // look for class methods only
-            bs = targetType.table.lookupAttrTagged(attr.id, "class");
-            if (bs == null) {
-                bs = targetType.table.lookupAttr(attr.id);
-            }
-        } else {
-            bs = targetType.table.lookupAttr(attr.id);
+        if (lookups == null) {
+            lookups = new InlineCache();
         }
+        List<Binding> bs = lookups.lookup(targetType, () -> lookupAttr(targetType));
 
         if (bs == null) {
             Analyzer.self.putProblem(attr, "attribute not found in type: " + targetType);
@@ -121,6 +118,19 @@ public class Attribute extends Node {
     }
 
 
+    @Nullable
+    private List<Binding> lookupAttr(@NotNull Type targetType) {
+        if (targetType instanceof ClassType || targetType instanceof ModuleType) {
+            // look for class methods only
+            List<Binding> bs = targetType.table.lookupAttrTagged(attr.id, "class");
+            if (bs != null) {
+                return bs;
+            }
+        }
+        return targetType.table.lookupAttr(attr.id);
+    }
+
+
     @NotNull
     @Override
     public String toString() {
@@ -28,7 +28,7 @@ public class Block extends Node {
 
         boolean returned = false;
         Type retType = Type.UNKNOWN;
-        boolean wasStatic = Analyzer.self.staticContext;
+        boolean wasStatic = Analyzer.self.isStaticContext();
 
         for (Node n : seq) {
             Type t = transformExpr(n, state);
@@ -19,6 +19,9 @@ public class Call extends Node {
     public Node kwargs;
     public Node starargs;
     public Node blockarg = null;
+    // the "initialize" found for the last few classes instantiated here
+    @Nullable
+    private transient InlineCache constructors;
 
 
     public Call(Node func, List<Node> args, @Nullable List<Keyword> keywords,
@@ -149,7 +152,13 @@ public class Call extends Node {
         } else if (fun instanceof ClassType) {
             // ! 这里可能是调用类方法？？？
             // constructor
-            InstanceType inst = new InstanceType(fun, newName, this, pos);
+            InstanceType inst = new InstanceType(fun);
+            if (constructors == null) {
+                constructors = new InlineCache();
+            }
+            // a new instance finds what its class table leads to
+            inst.initialize(newName, this, pos,
+                    constructors.lookup(fun, () -> inst.table.lookupAttr("initialize")));
             ((ClassType) fun).setCanon(inst);
 
             if (!isSuperCall()) {
@@ -180,7 +189,7 @@ public class Call extends Node {
         Analyzer.self.removeUncalled(func);
 
         if (func.func != null && !func.func.called) {
-            Analyzer.self.nCalled++;
+            Analyzer.self.nCalled.incrementAndGet();
             func.func.called = true;
         }
 
@@ -230,7 +239,7 @@ public class Call extends Node {
         } else {
             Type toType;
             if (func.isClassMethod) {
-                boolean wasStatic = Analyzer.self.staticContext;
+                boolean wasStatic = Analyzer.self.isStaticContext();
                 Analyzer.self.setStaticContext(true);
                 toType = transformExpr(func.func.body, funcTable);
                 Analyzer.self.setStaticContext(wasStatic);
@@ -359,7 +368,7 @@ public class Call extends Node {
             }
         }
 
-        return fromType;
+        return TupleType.intern(fromType);
     }
 
 
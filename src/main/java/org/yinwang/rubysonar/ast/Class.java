@@ -6,9 +6,12 @@ import org.yinwang.rubysonar.*;
 import org.yinwang.rubysonar.types.ClassType;
 import org.yinwang.rubysonar.types.Type;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 public class Class extends Node {
-    private static int classCounter = 0;
+    // files are resolved on several threads in parallel mode
+    private static final AtomicInteger classCounter = new AtomicInteger();
 
     @Nullable
     public Node locator;
@@ -45,8 +48,7 @@ public class Class extends Node {
 
     @NotNull
     public static String genClassName() {
-        classCounter = classCounter + 1;
-        return "class%" + classCounter;
+        return "class%" + classCounter.incrementAndGet();
     }
 
 
@@ -57,7 +59,7 @@ public class Class extends Node {
             Type reopened = transformExpr(locator, s);
             if (isStatic) {
                 if (body != null) {
-                    boolean wasStatic = Analyzer.self.staticContext;
+                    boolean wasStatic = Analyzer.self.isStaticContext();
                     Analyzer.self.setStaticContext(true);
                     transformExpr(body, reopened.table);
                     Analyzer.self.setStaticContext(wasStatic);
@@ -12,6 +12,7 @@ import org.yinwang.rubysonar.types.Type;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class Function extends Node {
@@ -91,7 +92,7 @@ public class Function extends Node {
             }
         }
 
-        if (locType instanceof ClassType || locType instanceof ModuleType || Analyzer.self.staticContext) {
+        if (locType instanceof ClassType || locType instanceof ModuleType || Analyzer.self.isStaticContext()) {
             fun.setClassMethod(true);
             s.insertTagged(name.id, "class", name, fun, Binding.Kind.CLASS_METHOD);
             fun.table.setPath(s.extendPath(name.id, "."));
@@ -104,13 +105,13 @@ public class Function extends Node {
     }
 
 
-    private static int lambdaCounter = 0;
+    // files are resolved on several threads in parallel mode
+    private static final AtomicInteger lambdaCounter = new AtomicInteger();
 
 
     @NotNull
     public static String genLambdaName() {
-        lambdaCounter = lambdaCounter + 1;
-        return "lambda%" + lambdaCounter;
+        return "lambda%" + lambdaCounter.incrementAndGet();
     }
 
 
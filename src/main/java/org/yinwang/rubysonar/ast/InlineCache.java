@@ -0,0 +1,97 @@
+package org.yinwang.rubysonar.ast;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.rubysonar.Analyzer;
+import org.yinwang.rubysonar.Binding;
+import org.yinwang.rubysonar.types.Type;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+
+/**
+ * What a node looked up in the table of each receiver type it has seen,
+ * for the nodes that are transformed again every time their function is
+ * applied.  An entry holds while the receiver's table gives the same
+ * answers (see {@link org.yinwang.rubysonar.State#getLookupStamp}).  A
+ * node that sees more than {@link #SIZE} receivers stops caching and
+ * always looks up.  Tables without a lookup chain aren't cached, looking
+ * there is as cheap as the cache.
+ */
+final class InlineCache {
+
+    static final int SIZE = 4;
+
+    private static final class Entry {
+        // the node may live much longer than the types it has seen
+        @NotNull
+        final WeakReference<Type> receiver;
+        final long stamp;
+        @Nullable
+        final List<Binding> bindings;
+
+
+        Entry(@NotNull Type receiver, long stamp, @Nullable List<Binding> bindings) {
+            this.receiver = new WeakReference<>(receiver);
+            this.stamp = stamp;
+            this.bindings = bindings;
+        }
+    }
+
+
+    private static final Entry[] EMPTY = new Entry[0];
+    private static final Entry[] MEGAMORPHIC = new Entry[0];
+
+    // replaced, never changed, so readers on other threads see whole entries
+    @NotNull
+    private volatile Entry[] entries = EMPTY;
+
+
+    /**
+     * The bindings {@code lookup} finds in the table of {@code receiver},
+     * from the cache if it has looked there since the table last changed.
+     */
+    @Nullable
+    List<Binding> lookup(@NotNull Type receiver, @NotNull Supplier<List<Binding>> lookup) {
+        if (!receiver.table.hasLookupChain()) {
+            return lookup.get();
+        }
+        Entry[] es = entries;
+        if (es == MEGAMORPHIC) {
+            Analyzer.self.inlineCacheMegamorphic.increment();
+            return lookup.get();
+        }
+
+        // taken before the lookup, a change meanwhile leaves the entry stale
+        long stamp = receiver.table.getLookupStamp();
+        int slot = es.length;
+        for (int i = 0; i < es.length; i++) {
+            Type seen = es[i].receiver.get();
+            if (seen == receiver) {
+                if (es[i].stamp == stamp) {
+                    Analyzer.self.inlineCacheHits.increment();
+                    return es[i].bindings;
+                }
+                slot = i;
+                break;
+            } else if (seen == null && slot == es.length) {
+                // collected, free for another receiver
+                slot = i;
+            }
+        }
+
+        Analyzer.self.inlineCacheMisses.increment();
+        List<Binding> bs = lookup.get();
+        if (slot == SIZE) {
+            entries = MEGAMORPHIC;
+        } else {
+            Entry[] next = Arrays.copyOf(es, Math.max(es.length, slot + 1));
+            next[slot] = new Entry(receiver, stamp, bs);
+            entries = next;
+        }
+        return bs;
+    }
+}
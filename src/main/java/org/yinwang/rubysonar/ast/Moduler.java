@@ -34,7 +34,7 @@ public class Moduler extends Node {
     @Override
     public Type transform(@NotNull State s) {
         if (name.id.equals("ClassMethods")) {
-            boolean saved = Analyzer.self.staticContext;
+            boolean saved = Analyzer.self.isStaticContext();
             Analyzer.self.setStaticContext(true);
             transformExpr(body, s);
             Analyzer.self.setStaticContext(saved);
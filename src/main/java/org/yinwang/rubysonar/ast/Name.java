@@ -52,7 +52,7 @@ public class Name extends Node {
             Analyzer.self.autoLoadModule(this.id);
         }
 
-        if (Analyzer.self.staticContext) {
+        if (Analyzer.self.isStaticContext()) {
             b = s.lookupTagged(id, "class");
             if (b == null) {
                 b = s.lookup(id);
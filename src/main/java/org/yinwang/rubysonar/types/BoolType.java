@@ -56,6 +56,12 @@ public class BoolType extends Type {
     }
 
 
+    @Override
+    public int hashCode() {
+        return "BoolType".hashCode();
+    }
+
+
     @Override
     protected String printType(CyclicTypeRecorder ctr) {
         if (Analyzer.self.hasOption("debug")) {
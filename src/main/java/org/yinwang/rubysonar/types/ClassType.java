@@ -13,8 +13,8 @@ public class ClassType extends Type {
 
 
     public ClassType(@NotNull String name, @Nullable State parent) {
+        super(new State(parent, State.StateType.CLASS));
         this.name = name;
-        this.setTable(new State(parent, State.StateType.CLASS));
         table.setType(this);
         if (parent != null) {
             table.setPath(parent.extendPath(name, "::"));
@@ -9,6 +9,12 @@ public class FloatType extends Type {
     }
 
 
+    @Override
+    public int hashCode() {
+        return "FloatType".hashCode();
+    }
+
+
     @Override
     protected String printType(CyclicTypeRecorder ctr) {
         return "float";
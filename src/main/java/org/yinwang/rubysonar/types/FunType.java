@@ -7,13 +7,21 @@ import org.yinwang.rubysonar.State;
 import org.yinwang.rubysonar.TypeStack;
 import org.yinwang.rubysonar.ast.Function;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.*;
 
 
 public class FunType extends Type {
 
+    // a few representative mappings, for display
+    // both maps are written as entry arrays by writeObject, see readObject
     @NotNull
-    public Map<Type, Type> arrows = new HashMap<>();
+    public transient Map<Type, Type> arrows = new HashMap<>();
+    // call results by interned argument tuple, kept in snapshots
+    @Nullable
+    private transient SummaryCache summaries = null;
     public Function func;
     @Nullable
     public ClassType cls = null;
@@ -39,7 +47,34 @@ public class FunType extends Type {
     }
 
 
-    public void addMapping(Type from, Type to) {
+    /**
+     * Bounded LRU of call summaries.  A static class, so that it serializes
+     * without its owner.
+     */
+    private static class SummaryCache extends LinkedHashMap<Type, Type> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+
+
+        SummaryCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Type, Type> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+
+    public synchronized void addMapping(Type from, Type to) {
+        if (summaries == null) {
+            summaries = new SummaryCache(Analyzer.self.getSummaryCacheSize());
+        }
+        summaries.put(from, to);
+
         if (arrows.size() < 5) {
             arrows.put(from, to);
             Map<Type, Type> oldArrows = arrows;
@@ -53,8 +88,13 @@ public class FunType extends Type {
 
 
     @Nullable
-    public Type getMapping(@NotNull Type from) {
-        return arrows.get(from);
+    public synchronized Type getMapping(@NotNull Type from) {
+        Type to = summaries == null ? null : summaries.get(from);
+        if (to == null) {
+            to = arrows.get(from);
+        }
+        Analyzer.self.stats.inc(to == null ? "summary.miss" : "summary.hit");
+        return to;
     }
 
 
@@ -103,6 +143,56 @@ public class FunType extends Type {
     }
 
 
+    private void writeObject(@NotNull ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(toEntries(arrows));
+        out.writeInt(summaries == null ? -1 : summaries.maxSize);
+        if (summaries != null) {
+            out.writeObject(toEntries(summaries));
+        }
+    }
+
+
+    /**
+     * The keys hash by content, so like {@link UnionType} the maps are only
+     * filled once the whole snapshot is read, after the unions.
+     */
+    private void readObject(@NotNull ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        Type[] arrowEntries = (Type[]) in.readObject();
+        int maxSize = in.readInt();
+        Type[] summaryEntries = maxSize < 0 ? null : (Type[]) in.readObject();
+
+        arrows = new HashMap<>();
+        summaries = maxSize < 0 ? null : new SummaryCache(maxSize);
+        in.registerValidation(() -> {
+            putEntries(arrows, arrowEntries);
+            if (summaries != null) {
+                putEntries(summaries, summaryEntries);
+            }
+        }, 0);
+    }
+
+
+    @NotNull
+    private static Type[] toEntries(@NotNull Map<Type, Type> map) {
+        Type[] entries = new Type[2 * map.size()];
+        int i = 0;
+        for (Map.Entry<Type, Type> e : map.entrySet()) {
+            entries[i++] = e.getKey();
+            entries[i++] = e.getValue();
+        }
+        return entries;
+    }
+
+
+    private static void putEntries(@NotNull Map<Type, Type> map, @NotNull Type[] entries) {
+        for (int i = 0; i < entries.length; i += 2) {
+            map.put(entries[i], entries[i + 1]);
+        }
+    }
+
+
     private boolean subsumed(Type type1, Type type2) {
         return subsumedInner(type1, type2, new TypeStack());
     }
@@ -1,6 +1,7 @@
 package org.yinwang.rubysonar.types;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.yinwang.rubysonar.Analyzer;
 import org.yinwang.rubysonar.Binding;
 import org.yinwang.rubysonar.State;
@@ -8,7 +9,6 @@ import org.yinwang.rubysonar.ast.Call;
 import org.yinwang.rubysonar.ast.Name;
 
 import java.util.List;
-import java.util.Map;
 
 
 public class InstanceType extends Type {
@@ -20,23 +20,25 @@ public class InstanceType extends Type {
         table.setStateType(State.StateType.INSTANCE);
         table.setParent(c.table.parent);
         table.setPath(c.table.path);
+        // reads through to the class until the instance writes its own
+        table.setBase(c.table);
         classType = c;
-
-        for (Map.Entry<String, List<Binding>> e : c.table.table.entrySet()) {
-            for (Binding b : e.getValue()) {
-                if (b.kind != Binding.Kind.CLASS_METHOD) {
-                    table.update(e.getKey(), b);
-                }
-            }
-        }
     }
 
 
     public InstanceType(@NotNull Type c, Name newName, Call call, List<Type> args) {
         this(c);
-        Type initFunc = table.lookupAttrType("initialize");
+        initialize(newName, call, args, table.lookupAttr("initialize"));
+    }
+
+
+    /**
+     * Apply the constructor {@code bs}, which is what this instance finds
+     * for "initialize".
+     */
+    public void initialize(Name newName, Call call, List<Type> args, @Nullable List<Binding> bs) {
+        Type initFunc = bs == null ? null : State.makeUnion(bs);
         if (initFunc != null && initFunc instanceof FunType && ((FunType) initFunc).func != null) {
-            List<Binding> bs = table.lookupAttr("initialize");   // can't be null
             if (newName != null) {
                 Analyzer.self.putRef(newName, bs);
             }
@@ -53,7 +55,7 @@ public class InstanceType extends Type {
             InstanceType iother = (InstanceType) other;
             // for now ignore the case where an instance of the same class is modified
             if (classType.equals(iother.classType) &&
-                    table.keySet().equals(iother.table.keySet()))
+                    table.hasSameKeys(iother.table))
             {
                 return true;
             }
@@ -9,6 +9,12 @@ public class IntType extends Type {
     }
 
 
+    @Override
+    public int hashCode() {
+        return "IntType".hashCode();
+    }
+
+
     @Override
     protected String printType(Type.CyclicTypeRecorder ctr) {
         return "int";
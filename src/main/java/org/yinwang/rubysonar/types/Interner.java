@@ -0,0 +1,29 @@
+package org.yinwang.rubysonar.types;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+
+/**
+ * Weak table of canonical instances.  Only for types that are no longer
+ * modified once built; entries go away with the last outside reference.
+ */
+class Interner<T extends Type> {
+
+    private final Map<T, WeakReference<T>> table = new WeakHashMap<>();
+
+
+    @NotNull
+    synchronized T intern(@NotNull T t) {
+        WeakReference<T> ref = table.get(t);
+        T existing = ref == null ? null : ref.get();
+        if (existing != null) {
+            return existing;
+        }
+        table.put(t, new WeakReference<>(t));
+        return t;
+    }
+}
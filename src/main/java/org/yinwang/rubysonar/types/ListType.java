@@ -64,13 +64,13 @@ public class ListType extends Type {
 
     @Override
     public boolean equals(Object other) {
-        if (typeStack.contains(this, other)) {
+        if (typeStack().contains(this, other)) {
             return true;
         } else if (other instanceof ListType) {
             ListType co = (ListType) other;
-            typeStack.push(this, other);
+            typeStack().push(this, other);
             boolean ret = co.eltType.equals(eltType);
-            typeStack.pop(this, other);
+            typeStack().pop(this, other);
             return ret;
         } else {
             return false;
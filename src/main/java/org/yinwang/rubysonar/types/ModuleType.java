@@ -14,6 +14,7 @@ public class ModuleType extends Type {
 
 
     public ModuleType(@NotNull String name, @Nullable String file, @NotNull State parent) {
+        super(new State(parent, State.StateType.MODULE));
         this.name = name;
         this.file = file;  // null for builtin modules
         if (parent.path.isEmpty()) {
@@ -21,7 +22,6 @@ public class ModuleType extends Type {
         } else {
             qname = parent.path + "::" + name;
         }
-        setTable(new State(parent, State.StateType.MODULE));
         table.setPath(qname);
         table.setType(this);
     }
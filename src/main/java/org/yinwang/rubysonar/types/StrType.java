@@ -20,6 +20,12 @@ public class StrType extends Type {
     }
 
 
+    @Override
+    public int hashCode() {
+        return "StrType".hashCode();
+    }
+
+
     @Override
     protected String printType(CyclicTypeRecorder ctr) {
         if (Analyzer.self.hasOption("debug") && value != null) {
@@ -19,6 +19,12 @@ public class SymbolType extends Type {
     }
 
 
+    @Override
+    public int hashCode() {
+        return "SymbolType".hashCode();
+    }
+
+
     @Override
     protected String printType(CyclicTypeRecorder ctr) {
         return "symbol";
@@ -11,6 +11,11 @@ public class TupleType extends Type {
 
     public List<Type> eltTypes;
 
+    // structural, 0 until computed
+    private transient int hash = 0;
+
+    private static final Interner<TupleType> interned = new Interner<>();
+
 
     public TupleType() {
         this.eltTypes = new ArrayList<>();
@@ -42,13 +47,25 @@ public class TupleType extends Type {
     }
 
 
+    /**
+     * The canonical tuple equal to {@code t}, which must not be modified
+     * afterwards.  Used for argument types, the keys of function summaries.
+     */
+    @NotNull
+    public static TupleType intern(@NotNull TupleType t) {
+        return interned.intern(t);
+    }
+
+
     public void setElementTypes(List<Type> eltTypes) {
         this.eltTypes = eltTypes;
+        hash = 0;
     }
 
 
     public void add(Type elt) {
         eltTypes.add(elt);
+        hash = 0;
     }
 
 
@@ -69,21 +86,21 @@ public class TupleType extends Type {
 
     @Override
     public boolean equals(Object other) {
-        if (typeStack.contains(this, other)) {
+        if (this == other || typeStack().contains(this, other)) {
             return true;
         } else if (other instanceof TupleType) {
             List<Type> types1 = eltTypes;
             List<Type> types2 = ((TupleType) other).eltTypes;
 
-            if (types1.size() == types2.size()) {
-                typeStack.push(this, other);
+            if (types1.size() == types2.size() && hashCode() == other.hashCode()) {
+                typeStack().push(this, other);
                 for (int i = 0; i < types1.size(); i++) {
                     if (!types1.get(i).equals(types2.get(i))) {
-                        typeStack.pop(this, other);
+                        typeStack().pop(this, other);
                         return false;
                     }
                 }
-                typeStack.pop(this, other);
+                typeStack().pop(this, other);
                 return true;
             } else {
                 return false;
@@ -97,7 +114,15 @@ public class TupleType extends Type {
 
     @Override
     public int hashCode() {
-        return "TupleType".hashCode();
+        int h = hash;
+        if (h == 0) {
+            h = "TupleType".hashCode();
+            for (Type t : eltTypes) {
+                h = 31 * h + t.hashCode();
+            }
+            hash = h;
+        }
+        return h;
     }
 
 
@@ -16,21 +16,40 @@ public abstract class Type implements Serializable {
 
     private static final long serialVersionUID = 1L;
     @NotNull
-    public State table = new State(Analyzer.self.globaltable, State.StateType.INSTANCE);
+    public State table;
     public String file = null;
     public boolean mutated = false;
 
 
+    // one per thread, files may be resolved concurrently (see Analyzer.analyzeParallel)
     @NotNull
-    protected static TypeStack typeStack = new TypeStack();
+    private static final ThreadLocal<TypeStack> typeStacks = ThreadLocal.withInitial(TypeStack::new);
 
 
     public Type() {
+        this(new State(Analyzer.self.globaltable, State.StateType.INSTANCE));
+    }
+
+
+    /**
+     * For types that come with their own kind of table, instead of making
+     * one just to replace it.
+     */
+    protected Type(@NotNull State table) {
+        this.table = table;
+    }
+
+
+    @NotNull
+    protected static TypeStack typeStack() {
+        return typeStacks.get();
     }
 
 
     public void setTable(@NotNull State table) {
         this.table = table;
+        // "super" bindings reach tables through their type
+        State.hierarchyChanged();
     }
 
 
@@ -128,4 +147,39 @@ public abstract class Type implements Serializable {
     public static BoolType BOOL = new BoolType(BoolType.Value.Undecided);
     public static BoolType TRUE = new BoolType(BoolType.Value.True);
     public static BoolType FALSE = new BoolType(BoolType.Value.False);
+
+    private static final Type[] BUILTINS = {
+            UNKNOWN, CONT, NIL, STR, INT, FLOAT, BOOL, TRUE, FALSE,
+            UNKNOWN.classType, CONT.classType, NIL.classType
+    };
+
+
+    /**
+     * Builtin types are written by index, so that code comparing against
+     * them with == keeps working on a deserialized snapshot.
+     */
+    private static class BuiltinRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int index;
+
+
+        BuiltinRef(int index) {
+            this.index = index;
+        }
+
+
+        private Object readResolve() {
+            return BUILTINS[index];
+        }
+    }
+
+
+    protected Object writeReplace() {
+        for (int i = 0; i < BUILTINS.length; i++) {
+            if (BUILTINS[i] == this) {
+                return new BuiltinRef(i);
+            }
+        }
+        return this;
+    }
 }
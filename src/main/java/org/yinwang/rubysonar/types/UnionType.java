@@ -3,14 +3,25 @@ package org.yinwang.rubysonar.types;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
 
 public class UnionType extends Type {
 
-    public Set<Type> types;
+    // written as an array by writeObject, see readObject
+    public transient Set<Type> types;
+
+    // structural, 0 until computed; identity hashes of members differ across runs
+    private transient int hash = 0;
+
+    // canonical instances of the unions built by union/newUnion
+    private static final Interner<UnionType> interned = new Interner<>();
 
 
     public UnionType() {
@@ -56,18 +67,51 @@ public class UnionType extends Type {
     }
 
 
+    /**
+     * Same result as folding {@link #union} over {@code types}, but builds a
+     * single union instead of one per element.
+     */
     @NotNull
     static public Type newUnion(@NotNull Collection<Type> types) {
-        Type t = Type.UNKNOWN;
+        Set<Type> members = new HashSet<>();
+        boolean hasNil = false;
         for (Type nt : types) {
-            t = union(t, nt);
+            if (nt == Type.UNKNOWN) {
+                continue;
+            } else if (nt == Type.NIL) {
+                hasNil = true;
+            } else if (nt instanceof UnionType) {
+                members.addAll(((UnionType) nt).types);
+            } else {
+                members.add(nt);
+            }
+        }
+
+        if (members.isEmpty()) {
+            return hasNil ? Type.NIL : Type.UNKNOWN;
+        } else if (members.size() == 1) {
+            return members.iterator().next();
+        } else {
+            UnionType u = new UnionType();
+            u.types = members;
+            return intern(u);
         }
-        return t;
+    }
+
+
+    /**
+     * The canonical union equal to {@code u}.  Unions are not modified after
+     * construction, so the first one built can stand for all equal ones.
+     */
+    @NotNull
+    static UnionType intern(@NotNull UnionType u) {
+        return interned.intern(u);
     }
 
 
     public void setTypes(Set<Type> types) {
         this.types = types;
+        hash = 0;
     }
 
 
@@ -77,6 +121,7 @@ public class UnionType extends Type {
         } else {
             types.add(t);
         }
+        hash = 0;
     }
 
 
@@ -100,7 +145,7 @@ public class UnionType extends Type {
         } else if (v == Type.NIL) {
             return u;
         } else {
-            return new UnionType(u, v);
+            return intern(new UnionType(u, v));
         }
     }
 
@@ -124,28 +169,28 @@ public class UnionType extends Type {
 
     @Override
     public boolean equals(Object other) {
-        if (typeStack.contains(this, other)) {
+        if (this == other || typeStack().contains(this, other)) {
             return true;
         } else if (other instanceof UnionType) {
             Set<Type> types1 = types;
             Set<Type> types2 = ((UnionType) other).types;
-            if (types1.size() != types2.size()) {
+            if (types1.size() != types2.size() || hashCode() != other.hashCode()) {
                 return false;
             } else {
-                typeStack.push(this, other);
+                typeStack().push(this, other);
                 for (Type t : types2) {
                     if (!types1.contains(t)) {
-                        typeStack.pop(this, other);
+                        typeStack().pop(this, other);
                         return false;
                     }
                 }
                 for (Type t : types1) {
                     if (!types2.contains(t)) {
-                        typeStack.pop(this, other);
+                        typeStack().pop(this, other);
                         return false;
                     }
                 }
-                typeStack.pop(this, other);
+                typeStack().pop(this, other);
                 return true;
             }
         } else {
@@ -154,9 +199,40 @@ public class UnionType extends Type {
     }
 
 
+    /**
+     * Order-independent sum of the members' hashes.  Tuples only contribute
+     * a constant: they may contain this union, and are hashed by content.
+     */
     @Override
     public int hashCode() {
-        return "UnionType".hashCode();
+        int h = hash;
+        if (h == 0) {
+            h = "UnionType".hashCode();
+            for (Type t : types) {
+                h += t instanceof TupleType ? "TupleType".hashCode() : t.hashCode();
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+
+    private void writeObject(@NotNull ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(types.toArray(new Type[0]));
+    }
+
+
+    /**
+     * The members are hashed only once the whole snapshot is read: a member
+     * reached through a cycle may still be half-read here.  Runs before the
+     * function types rebuild their maps, whose keys may contain this union.
+     */
+    private void readObject(@NotNull ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        Type[] members = (Type[]) in.readObject();
+        types = new HashSet<>();
+        in.registerValidation(() -> Collections.addAll(types, members), 1);
     }
 
 
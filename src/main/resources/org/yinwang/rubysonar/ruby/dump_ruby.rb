@@ -12,12 +12,18 @@ end
 
 class AstSimplifier
 
-  def initialize(filename)
+  # src is the file's content when it comes from an editor buffer rather
+  # than from disk
+  def initialize(filename, src=nil)
     @filename = filename
 
-    f = File.open(filename, 'rb')
-    @src = f.read
-    f.close
+    if src
+      @src = src.b
+    else
+      f = File.open(filename, 'rb')
+      @src = f.read
+      f.close
+    end
 
     detected_enc = detect_encoding(@src)
     if detected_enc
@@ -892,9 +898,9 @@ def hash_max_nest(hash)
   end
 end
 
-def parse_dump(input, output, endmark)
+def parse_dump(input, output, endmark, src=nil)
   begin
-    simplifier = AstSimplifier.new(input)
+    simplifier = AstSimplifier.new(input, src)
     hash = simplifier.simplify
     json_string = JSON.pretty_generate(hash, max_nesting: hash_max_nest(hash))
     out = File.open(output, 'wb')
@@ -907,6 +913,209 @@ def parse_dump(input, output, endmark)
 end
 
 
+# write one length-prefixed frame: a 4-byte big-endian size, then the payload.
+# an empty frame tells the reader that the file failed to parse.
+def write_frame(out, payload)
+  payload = payload.b
+  out.write([payload.bytesize].pack('N'))
+  out.write(payload)
+  out.flush
+end
+
+
+# compact alternative to JSON for the frames, chosen with "format binary".
+# every value starts with a tag byte, integers are zigzag varints, map keys
+# are numbered per file (the number, then the key itself the first time it
+# is used). a hash whose type is in KINDS becomes a node: the kind's index
+# and its four positions (plus one, 0 if missing) instead of the "type",
+# "start", "end", "start_line" and "end_line" fields.
+class BinaryWriter
+  # same order as NodeKind.java
+  KINDS = [:program, :module, :block, :def, :lambda, :call, :attribute, :binary, :void,
+           :break, :retry, :redo, :continue, :class, :undef, :hash, :rescue, :for, :if,
+           :keyword, :array, :args, :dot2, :dot3, :star, :arg, :return, :string,
+           :string_embexpr, :regexp, :subscript, :begin, :unary, :while, :yield, :assign,
+           :name, :cvar, :ivar, :gvar, :symbol, :int, :float]
+  KIND_TAGS = Hash[KINDS.each_with_index.to_a]
+  POSITIONS = [:start, :end, :start_line, :end_line]
+
+  NIL, TRUE, FALSE, INT, FLOAT, STRING, ARRAY, MAP, NODE = (0..8).to_a
+
+  def initialize
+    @buf = String.new.force_encoding(Encoding::BINARY)
+    @keys = {}
+  end
+
+  def result
+    @buf
+  end
+
+  def varint(n)
+    while n >= 0x80
+      @buf << ((n & 0x7f) | 0x80)
+      n >>= 7
+    end
+    @buf << n
+  end
+
+  def string(s)
+    b = s.to_s.b
+    varint(b.bytesize)
+    @buf << b
+  end
+
+  def key(k)
+    k = k.to_s
+    if @keys.has_key?(k)
+      varint(@keys[k])
+    else
+      varint(@keys[k] = @keys.size)
+      string(k)
+    end
+  end
+
+  def write(v)
+    case v
+      when nil
+        @buf << NIL
+      when true
+        @buf << TRUE
+      when false
+        @buf << FALSE
+      when Integer
+        @buf << INT
+        varint(v >= 0 ? v * 2 : -v * 2 - 1)
+      when Float
+        @buf << FLOAT
+        @buf << [v].pack('G')
+      when String, Symbol
+        @buf << STRING
+        string(v)
+      when Array
+        @buf << ARRAY
+        varint(v.size)
+        v.each { |x| write(x) }
+      when Hash
+        type = v[:type]
+        kind = type && KIND_TAGS[type.to_sym]
+        fields = v
+        if kind
+          @buf << NODE
+          varint(kind)
+          POSITIONS.each do |p|
+            pos = v[p]
+            varint(pos.is_a?(Integer) && pos >= 0 ? pos + 1 : 0)
+          end
+          fields = v.reject { |k, _| k == :type || POSITIONS.include?(k) }
+        else
+          @buf << MAP
+        end
+        varint(fields.size)
+        fields.each do |k, x|
+          key(k)
+          write(x)
+        end
+      else
+        @buf << STRING
+        string(v.to_s)
+    end
+  end
+end
+
+
+$format = 'json'
+
+# the AST of input (or of src, the unsaved content of input) in the current
+# $format.  also called directly by the in-JVM backend (JRubyBackend), which
+# has no frames to write.
+def encode_ast(input, src=nil)
+  hash = AstSimplifier.new(input, src).simplify
+  if $format == 'binary'
+    writer = BinaryWriter.new
+    writer.write(hash)
+    writer.result
+  else
+    JSON.generate(hash, max_nesting: hash_max_nest(hash))
+  end
+end
+
+def parse_stream(input, out, src=nil)
+  payload = ''
+  begin
+    payload = encode_ast(input, src)
+  rescue Exception => e
+    $stderr.puts "failed to parse #{input}: #{e}"
+  end
+  write_frame(out, payload)
+end
+
+
+# serve commands read line by line from input, one frame per parsed file.
+# "batch" takes tab-separated files and answers with a frame for each, in order.
+# "source <base64> <file>" parses the given content as if it were the file's.
+# "format" switches the frames between "json" (default) and "binary".
+# an unknown command gets an empty frame, like a file that doesn't parse.
+def serve(input, out)
+  out.binmode
+  while (line = input.gets)
+    cmd, arg = line.chomp.split(' ', 2)
+    case cmd
+      when 'parse'
+        parse_stream(arg, out)
+      when 'batch'
+        arg.split("\t").each { |file| parse_stream(file, out) }
+      when 'source'
+        data, file = arg.split(' ', 2)
+        parse_stream(file, out, data.unpack('m0')[0])
+      when 'format'
+        $format = arg
+      when 'quit'
+        break
+      else
+        $stderr.puts "unknown command: #{line}"
+        # the caller waits for a frame, an empty one fails it at once
+        write_frame(out, '')
+    end
+  end
+end
+
+
+# fork parse servers on demand from a process that already paid for loading
+# and warming up ripper and json.  each "spawn <dir>" line read from input
+# forks a child serving <dir>/requests and <dir>/responses (named pipes made
+# by the caller), and is answered with the child's pid on its own line.
+def prefork(input, out)
+  begin
+    AstSimplifier.new(__FILE__).simplify
+    JSON.generate({:warm => [1]})
+  rescue Exception => e
+    $stderr.puts "warm-up failed: #{e}"
+  end
+  GC.start
+
+  while (line = input.gets)
+    cmd, arg = line.chomp.split(' ', 2)
+    case cmd
+      when 'spawn'
+        pid = fork do
+          input.close
+          $stdout.reopen($stderr)
+          requests = File.open(File.join(arg, 'requests'), 'r')
+          responses = File.open(File.join(arg, 'responses'), 'wb')
+          serve(requests, responses)
+        end
+        Process.detach(pid)
+        out.puts pid
+        out.flush
+      when 'quit'
+        break
+      else
+        $stderr.puts "unknown command: #{line}"
+    end
+  end
+end
+
+
 $options = {}
 OptionParser.new do |opts|
   opts.banner = "Usage: dump_ruby.rb [options]"
@@ -915,10 +1124,27 @@ OptionParser.new do |opts|
     $options[:debug] = v
   end
 
+  opts.on("-s", "--stream", "serve parse requests from stdin, frames on stdout") do |v|
+    $options[:stream] = v
+  end
+
+  opts.on("-p", "--prefork", "fork parse servers on named pipes, on request from stdin") do |v|
+    $options[:prefork] = v
+  end
+
 end.parse!
 
 
-if ARGV.length > 0
+if $options[:stream]
+  # keep stray output (debug dumps, warnings) off the frame channel
+  frames = $stdout.dup
+  $stdout.reopen($stderr)
+  serve($stdin, frames)
+elsif $options[:prefork]
+  replies = $stdout.dup
+  $stdout.reopen($stderr)
+  prefork($stdin, replies)
+elsif ARGV.length > 0
   parse_dump(ARGV[0], ARGV[1], ARGV[2])
 end
 